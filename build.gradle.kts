@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.17.2"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "cn.yunrong"
@@ -19,6 +20,66 @@ intellij {
     plugins.set(listOf(/* Plugin Dependencies */))
 }
 
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+// BPE 词表 (tiktoken 格式的 cl100k_base, 约 1.7 MB) 不放入仓库, 构建时下载并校验 SHA-256 后打包到插件的 /tokenizer 目录,
+// 运行时不需要联网. 离线构建时可用 -PtokenizerVocabulary=/path/to/cl100k_base.tiktoken 指定本地文件
+val tokenizerVocabularyUrl = "https://openaipublic.blob.core.windows.net/encodings/cl100k_base.tiktoken"
+val tokenizerVocabularySha256 = "223921b76ee99bde995b7ff738513eef100fb51d18c93597a113bcffe865b2a7"
+val tokenizerResourcesDir = layout.buildDirectory.dir("generated/tokenizer")
+
+val downloadTokenizerVocabulary by tasks.registering {
+    val localVocabulary = findProperty("tokenizerVocabulary") as String?
+    val target = tokenizerResourcesDir.map { it.file("tokenizer/cl100k_base.tiktoken") }
+    inputs.property("sha256", tokenizerVocabularySha256)
+    outputs.file(target)
+    doLast {
+        val bytes = if (localVocabulary != null) {
+            file(localVocabulary).readBytes()
+        } else {
+            uri(tokenizerVocabularyUrl).toURL().openStream().use { it.readBytes() }
+        }
+        val digest = java.security.MessageDigest.getInstance("SHA-256").digest(bytes)
+            .joinToString("") { "%02x".format(it) }
+        if (digest != tokenizerVocabularySha256) {
+            throw GradleException("cl100k_base.tiktoken checksum mismatch: $digest")
+        }
+        val file = target.get().asFile
+        file.parentFile.mkdirs()
+        file.writeBytes(bytes)
+    }
+}
+
+sourceSets {
+    main {
+        resources.srcDir(files(tokenizerResourcesDir).builtBy(downloadTokenizerVocabulary))
+    }
+}
+
+// JMH 基准测试: ./gradlew jmh, 源码位于 src/jmh/java
+// IDE 平台的 jar 只在 compileOnly / testImplementation 中, 基准测试需要同样的依赖
+configurations {
+    named("jmhImplementation") {
+        extendsFrom(configurations.testImplementation.get())
+    }
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    jvmArgs.set(listOf("-Xmx4g", "-Djava.awt.headless=true"))
+    resultFormat.set("JSON")
+    // 只运行部分基准测试或规模, 如 ./gradlew jmh -PjmhIncludes=TokenCounter -PjmhFileCounts=1000
+    (findProperty("jmhIncludes") as String?)?.let { includes.set(listOf(it)) }
+    (findProperty("jmhFileCounts") as String?)?.let {
+        benchmarkParameters.put("fileCount", objects.listProperty(String::class.java).value(it.split(",")))
+    }
+}
+
 tasks {
     // Set the JVM compatibility versions
     withType<JavaCompile> {
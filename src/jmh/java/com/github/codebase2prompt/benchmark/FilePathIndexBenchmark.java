@@ -0,0 +1,46 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.core.FilePathIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件树过滤框每次输入的查询耗时, 以及建立索引的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilePathIndexBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    // 子串、短子串、文件名通配符、路径通配符、驼峰
+    @Param({"generated123", "ge", "*7.java", "src/**/s3/*1?.java", "G12"})
+    public String filter;
+
+    private List<String> relativePaths;
+    private FilePathIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (SyntheticProject project = SyntheticProject.generate(fileCount)) {
+            relativePaths = project.getRelativePaths();
+        }
+        index = new FilePathIndex(relativePaths);
+    }
+
+    @Benchmark
+    public BitSet match() {
+        return index.match(filter);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public FilePathIndex buildIndex() {
+        return new FilePathIndex(relativePaths);
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.ui.FileTreePanel;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * FileTreePanel 的建树与全选, 都在 EDT 上执行, 与对话框中的实际情况一致
+ * <p>
+ * 建树和全选内部使用 invokeLater, 每次测量都会排空 EDT 队列, 保证计入完整的更新;
+ * 基准测试中没有 Application, 面板经由 EdtExecutor 退回 SwingUtilities.invokeLater
+ * <p>
+ * 每个面板用完后 dispose, 停止后台统计线程, 避免其读取文件影响后续测量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTreePanelBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private SyntheticProject project;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.generate(fileCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        project.close();
+    }
+
+    // 全选前需要一棵未选中的新树, 建树不计入全选的耗时
+    @State(Scope.Thread)
+    public static class UnselectedPanel {
+        FileTreePanel panel;
+
+        @Setup(Level.Invocation)
+        public void setUp(FileTreePanelBenchmark benchmark) throws Exception {
+            panel = benchmark.createPanel();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            panel.dispose();
+        }
+    }
+
+    @Benchmark
+    public FileTreePanel buildTree() throws Exception {
+        FileTreePanel panel = createPanel();
+        panel.dispose();
+        return panel;
+    }
+
+    @Benchmark
+    public int selectAll(UnselectedPanel state) throws Exception {
+        FileTreePanel panel = state.panel;
+        SwingUtilities.invokeAndWait(panel::selectAll);
+        flushEdt();
+        return onEdt(() -> panel.getSelectedFiles().size());
+    }
+
+    private FileTreePanel createPanel() throws Exception {
+        FileTreePanel panel = onEdt(() -> new FileTreePanel(project.getProject(), project.getVirtualFiles().toArray(VirtualFile.EMPTY_ARRAY)));
+        // 文件分批插入, 每批一个 EDT 事件, 排空到全部插入为止
+        while (!onEdt(panel::isLoaded)) {
+            flushEdt();
+        }
+        return panel;
+    }
+
+    private static <T> T onEdt(Supplier<T> supplier) throws InvocationTargetException, InterruptedException {
+        Object[] result = new Object[1];
+        SwingUtilities.invokeAndWait(() -> result[0] = supplier.get());
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+
+    private static void flushEdt() throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.core.FolderStructureRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目录结构渲染 (原 generateTreeString), 框线树与紧凑两种格式
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FolderStructureBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private List<String> relativePaths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (SyntheticProject project = SyntheticProject.generate(fileCount)) {
+            relativePaths = project.getRelativePaths();
+        }
+    }
+
+    @Benchmark
+    public String renderTree() {
+        return FolderStructureRenderer.render(relativePaths, FolderStructureRenderer.Style.TREE);
+    }
+
+    @Benchmark
+    public String renderCompact() {
+        return FolderStructureRenderer.render(relativePaths, FolderStructureRenderer.Style.COMPACT);
+    }
+}
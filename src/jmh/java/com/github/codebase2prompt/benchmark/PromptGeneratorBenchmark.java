@@ -0,0 +1,57 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.core.PromptGenerator;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PromptGenerator.generatePrompt 的冷启动 (无片段缓存) 与热缓存两种情况
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PromptGeneratorBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private SyntheticProject project;
+    private PromptGenerator warmGenerator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.generate(fileCount);
+        warmGenerator = createGenerator();
+        warmGenerator.generatePrompt(project.getVirtualFiles());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        warmGenerator.dispose();
+        project.close();
+    }
+
+    @Benchmark
+    public String generatePromptCold() {
+        PromptGenerator generator = createGenerator();
+        try {
+            return generator.generatePrompt(project.getVirtualFiles(), new EmptyProgressIndicator());
+        } finally {
+            generator.dispose();
+        }
+    }
+
+    @Benchmark
+    public String generatePromptWarm() {
+        return warmGenerator.generatePrompt(project.getVirtualFiles(), new EmptyProgressIndicator());
+    }
+
+    private PromptGenerator createGenerator() {
+        PromptGenerator generator = new PromptGenerator(project.getProject());
+        // 不限制大小, 让所有规模都输出全部文件
+        generator.setSizeLimit(0);
+        return generator;
+    }
+}
@@ -0,0 +1,362 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.storage.FileSelectionStorage;
+import com.github.codebase2prompt.storage.PromptSettings;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileListener;
+import com.intellij.openapi.vfs.VirtualFileSystem;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试用的合成项目: 在临时目录中生成指定数量的 Java 源文件,
+ * 并提供不依赖 IDE 运行环境的 Project / VirtualFile
+ * <p>
+ * Project 的 getService 返回插件自己的服务 (默认设置) 和不排除任何文件的 ProjectFileIndex, 其他服务不支持
+ * <p>
+ * 每个目录 20 个文件, 目录按 8 叉分布, 内容由固定种子生成, 同一规模每次生成的结果相同
+ */
+final class SyntheticProject implements AutoCloseable {
+    private static final int FILES_PER_DIRECTORY = 20;
+    private static final int DIRECTORY_FAN_OUT = 8;
+    private static final long SEED = 20240501L;
+
+    private final Path baseDir;
+    private final Project project;
+    private final List<VirtualFile> virtualFiles;
+    private final List<String> relativePaths;
+
+    private SyntheticProject(Path baseDir, List<String> relativePaths) {
+        this.baseDir = baseDir;
+        this.relativePaths = relativePaths;
+        this.project = createProject(baseDir);
+        this.virtualFiles = new ArrayList<>(relativePaths.size());
+        for (String relativePath : relativePaths) {
+            virtualFiles.add(new SyntheticVirtualFile(baseDir.resolve(relativePath)));
+        }
+    }
+
+    static SyntheticProject generate(int fileCount) throws IOException {
+        Path baseDir = Files.createTempDirectory("codebase2prompt-jmh-" + fileCount + "-");
+        Random random = new Random(SEED);
+        List<String> relativePaths = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            String directory = directoryOf(i / FILES_PER_DIRECTORY);
+            String className = "Generated" + i;
+            String relativePath = directory + "/" + className + ".java";
+            Path file = baseDir.resolve(relativePath);
+            Files.createDirectories(file.getParent());
+            Files.write(file, javaSource(directory, className, random).getBytes(StandardCharsets.UTF_8));
+            relativePaths.add(relativePath);
+        }
+        return new SyntheticProject(baseDir, relativePaths);
+    }
+
+    Project getProject() {return project;}
+
+    List<VirtualFile> getVirtualFiles() {return virtualFiles;}
+
+    List<String> getRelativePaths() {return relativePaths;}
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(baseDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // 目录序号按 8 进制展开为多层目录, 如 src/main/java/m1/p3/s5
+    private static String directoryOf(int index) {
+        StringBuilder path = new StringBuilder("src/main/java");
+        String[] prefixes = {"s", "p", "m", "x"};
+        int level = 0;
+        do {
+            path.insert("src/main/java".length(), "/" + prefixes[Math.min(level, prefixes.length - 1)] + index % DIRECTORY_FAN_OUT);
+            index /= DIRECTORY_FAN_OUT;
+            level++;
+        } while (index > 0);
+        return path.toString();
+    }
+
+    private static String javaSource(String directory, String className, Random random) {
+        String packageName = directory.substring("src/main/java/".length()).replace('/', '.');
+        StringBuilder source = new StringBuilder(2048);
+        source.append("/*\n * Copyright (c) 2024 Example Corp.\n * Licensed under the Apache License, Version 2.0.\n */\n");
+        source.append("package ").append(packageName).append(";\n\n");
+        source.append("import java.util.List;\nimport java.util.Map;\nimport java.util.ArrayList;\nimport java.util.HashMap;\n\n");
+        source.append("/**\n * Synthetic class ").append(className).append(" used by benchmarks.\n */\n");
+        source.append("public class ").append(className).append(" {\n");
+        source.append("    private final Map<String, Integer> counts = new HashMap<>();\n\n");
+        int methods = 2 + random.nextInt(5);
+        for (int m = 0; m < methods; m++) {
+            source.append("    /**\n     * Computes value ").append(m).append(".\n     */\n");
+            source.append("    public List<String> method").append(m).append("(int limit) {\n");
+            source.append("        List<String> result = new ArrayList<>();\n");
+            int statements = 2 + random.nextInt(6);
+            for (int s = 0; s < statements; s++) {
+                source.append("        for (int i = 0; i < limit; i++) {\n");
+                source.append("            // accumulate ").append(random.nextInt(1000)).append('\n');
+                source.append("            result.add(\"item-\" + i * ").append(random.nextInt(97) + 1).append(");\n");
+                source.append("            counts.merge(\"key").append(s).append("\", i, Integer::sum);\n");
+                source.append("        }\n");
+            }
+            source.append("        return result;\n    }\n\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private static Project createProject(Path baseDir) {
+        String basePath = baseDir.toString().replace('\\', '/');
+        Map<Class<?>, Object> services = new ConcurrentHashMap<>();
+        return (Project) Proxy.newProxyInstance(Project.class.getClassLoader(), new Class[]{Project.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getService":
+                        return services.computeIfAbsent((Class<?>) args[0], type -> createService(type, (Project) proxy));
+                    case "getBasePath":
+                        return basePath;
+                    case "getName":
+                        return "synthetic";
+                    case "isDisposed":
+                        return false;
+                    case "isOpen":
+                    case "isInitialized":
+                        return true;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "SyntheticProject(" + basePath + ")";
+                    default:
+                        throw new UnsupportedOperationException(method.toString());
+                }
+            });
+    }
+
+    private static Object createService(Class<?> type, Project project) {
+        if (type == PromptSettings.class) {
+            return new PromptSettings();
+        }
+        if (type == FileSelectionStorage.class) {
+            return new FileSelectionStorage(project);
+        }
+        if (type == ProjectFileIndex.class) {
+            // 所有文件都在项目内容中, 没有排除和忽略的文件
+            return Proxy.newProxyInstance(ProjectFileIndex.class.getClassLoader(), new Class[]{ProjectFileIndex.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isInContent":
+                        case "isInProject":
+                        case "isInSource":
+                        case "isInSourceContent":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "SyntheticProjectFileIndex";
+                        default:
+                            return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+        }
+        throw new UnsupportedOperationException("No synthetic service for " + type.getName());
+    }
+
+    /**
+     * 直接读取本地文件的只读 VirtualFile, 不经过 VFS 与 LocalFileSystem
+     */
+    private static final class SyntheticVirtualFile extends VirtualFile {
+        private final Path path;
+        private final String systemIndependentPath;
+        private final long length;
+        // 生成后文件不再修改, 修改戳和时间戳都取创建时的修改时间
+        private final long timeStamp;
+
+        SyntheticVirtualFile(Path path) {
+            this.path = path;
+            this.systemIndependentPath = path.toString().replace('\\', '/');
+            try {
+                this.length = Files.size(path);
+                this.timeStamp = Files.getLastModifiedTime(path).toMillis();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return path.getFileName().toString();
+        }
+
+        // 默认实现经过 FileTypeManager, 需要 Application
+        @Override
+        public @NotNull FileType getFileType() {
+            return PlainTextFileType.INSTANCE;
+        }
+
+        @Override
+        public @NotNull VirtualFileSystem getFileSystem() {
+            return SyntheticFileSystem.INSTANCE;
+        }
+
+        @Override
+        public @NotNull String getPath() {
+            return systemIndependentPath;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return false;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public VirtualFile getParent() {
+            return null;
+        }
+
+        @Override
+        public VirtualFile[] getChildren() {
+            return EMPTY_ARRAY;
+        }
+
+        @Override
+        public @NotNull OutputStream getOutputStream(Object requestor, long newModificationStamp, long newTimeStamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] contentsToByteArray() throws IOException {
+            return Files.readAllBytes(path);
+        }
+
+        @Override
+        public long getTimeStamp() {
+            return timeStamp;
+        }
+
+        // 默认实现抛出 UnsupportedOperationException, 片段缓存需要它判断文件是否修改
+        @Override
+        public long getModificationStamp() {
+            return timeStamp;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void refresh(boolean asynchronous, boolean recursive, Runnable postRunnable) {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+    }
+
+    /**
+     * 只读的占位文件系统, 供 getUrl / toString 使用; 不支持查找和修改文件
+     */
+    private static final class SyntheticFileSystem extends VirtualFileSystem {
+        static final SyntheticFileSystem INSTANCE = new SyntheticFileSystem();
+
+        @Override
+        public @NotNull String getProtocol() {
+            return "synthetic";
+        }
+
+        @Override
+        public @Nullable VirtualFile findFileByPath(@NotNull String path) {
+            return null;
+        }
+
+        @Override
+        public void refresh(boolean asynchronous) {
+        }
+
+        @Override
+        public @Nullable VirtualFile refreshAndFindFileByPath(@NotNull String path) {
+            return null;
+        }
+
+        @Override
+        public void addVirtualFileListener(@NotNull VirtualFileListener listener) {
+        }
+
+        @Override
+        public void removeVirtualFileListener(@NotNull VirtualFileListener listener) {
+        }
+
+        @Override
+        protected void deleteFile(Object requestor, @NotNull VirtualFile vFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void moveFile(Object requestor, @NotNull VirtualFile vFile, @NotNull VirtualFile newParent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void renameFile(Object requestor, @NotNull VirtualFile vFile, @NotNull String newName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected @NotNull VirtualFile createChildFile(Object requestor, @NotNull VirtualFile vDir, @NotNull String fileName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected @NotNull VirtualFile createChildDirectory(Object requestor, @NotNull VirtualFile vDir, @NotNull String dirName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected @NotNull VirtualFile copyFile(Object requestor, @NotNull VirtualFile virtualFile,
+                                                @NotNull VirtualFile newParent, @NotNull String copyName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+    }
+}
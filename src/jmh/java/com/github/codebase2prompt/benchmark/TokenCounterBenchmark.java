@@ -0,0 +1,39 @@
+package com.github.codebase2prompt.benchmark;
+
+import com.github.codebase2prompt.core.PromptGenerator;
+import com.github.codebase2prompt.core.TokenCounter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenCounter.estimateTokens 对完整 Prompt 的计数
+ * <p>
+ * 构建时打包的 cl100k_base 词表在 jmh 类路径上, 测量的是 BPE 精确计数; 离线构建未下载词表时
+ * 退回估算路径, 可用 TokenCounter.isExact() 或日志中的 "Loaded BPE vocabulary" 确认
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenCounterBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private String prompt;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (SyntheticProject project = SyntheticProject.generate(fileCount)) {
+            PromptGenerator generator = new PromptGenerator(project.getProject());
+            generator.setSizeLimit(0);
+            prompt = generator.generatePrompt(project.getVirtualFiles());
+            generator.dispose();
+        }
+    }
+
+    @Benchmark
+    public int estimateTokens() {
+        return TokenCounter.estimateTokens(prompt);
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.codebase2prompt.action;
+
+import com.github.codebase2prompt.ui.PromptGeneratorDialog;
+import com.github.codebase2prompt.util.PerformanceLogger;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在后台遍历选中的文件和目录, 把其中的文件陆续加入已打开的对话框
+ * <p>
+ * 每个顶层子目录在有界线程池中各自遍历, 跳过项目中排除和忽略的文件和目录, 以及二进制文件;
+ * 每个目录的子节点在一个短读操作中读取, 读操作之间写操作可以执行, 遍历大目录时不会长时间阻塞 EDT.
+ * 可取消, 对话框关闭时遍历随之停止
+ */
+public class CollectFilesTask extends Task.Backgroundable {
+    private static final Logger LOG = Logger.getInstance(CollectFilesTask.class);
+    private static final int PARALLELISM = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    // 每个遍历线程攒够一批再交给对话框, 减少入队次数
+    private static final int BATCH_SIZE = 256;
+    // 等待遍历结果时检查取消状态的间隔
+    private static final long POLL_INTERVAL_MS = 20;
+    private static final ExecutorService EXECUTOR =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("Codebase2Prompt File Collector", PARALLELISM);
+
+    private final VirtualFile[] roots;
+    private final PromptGeneratorDialog dialog;
+    // 选中的目录可能互相包含, 按文件去重, 遍历线程并发写入
+    private final Set<VirtualFile> files = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger walkedDirectories = new AtomicInteger();
+    private long startTime;
+
+    /**
+     * @param roots 选中的文件和目录
+     * @param dialog 接收结果的对话框, 在启动任务之后显示
+     */
+    public CollectFilesTask(@NotNull Project project, @NotNull VirtualFile[] roots, @NotNull PromptGeneratorDialog dialog) {
+        super(project, "Codebase2Prompt: 收集文件", true);
+        this.roots = roots;
+        this.dialog = dialog;
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        startTime = System.currentTimeMillis();
+        indicator.setIndeterminate(true);
+        indicator.setText("正在收集文件");
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(myProject);
+        List<Future<?>> walks = new ArrayList<>();
+        try {
+            // 选中的文件和目录下的直接文件立即加入, 子目录分别交给线程池遍历
+            List<VirtualFile> batch = new ArrayList<>();
+            List<VirtualFile> directories = new ArrayList<>();
+            ReadAction.run(() -> {
+                for (VirtualFile root : roots) {
+                    if (!root.isValid() || fileIndex.isExcluded(root)) {
+                        continue;
+                    }
+                    if (!root.isDirectory()) {
+                        collect(root, batch);
+                        continue;
+                    }
+                    for (VirtualFile child : root.getChildren()) {
+                        if (fileIndex.isExcluded(child)) {
+                            continue;
+                        }
+                        if (child.isDirectory()) {
+                            directories.add(child);
+                        } else {
+                            collect(child, batch);
+                        }
+                    }
+                }
+            });
+            flush(batch);
+
+            for (VirtualFile directory : directories) {
+                walks.add(EXECUTOR.submit(() -> walk(directory, fileIndex, indicator)));
+            }
+            for (Future<?> walk : walks) {
+                await(walk, indicator);
+            }
+        } finally {
+            for (Future<?> walk : walks) {
+                walk.cancel(false);
+            }
+            // 对话框是模态的, onSuccess/onCancel 要等对话框关闭才会执行, 结束状态在这里通知
+            dialog.finishLoading();
+        }
+    }
+
+    private void walk(VirtualFile directory, ProjectFileIndex fileIndex, ProgressIndicator indicator) {
+        List<VirtualFile> batch = new ArrayList<>();
+        // 深度优先, 用栈代替递归; 排除和忽略的目录不入栈, 不会遍历 build、node_modules 等目录
+        Deque<VirtualFile> pending = new ArrayDeque<>();
+        pending.push(directory);
+        while (!pending.isEmpty() && !isStopped(indicator)) {
+            VirtualFile current = pending.pop();
+            ReadAction.run(() -> {
+                if (!current.isValid()) {
+                    return;
+                }
+                VirtualFile[] children = current.getChildren();
+                // 逆序入栈, 出栈时保持目录中的顺序
+                for (int i = children.length - 1; i >= 0; i--) {
+                    VirtualFile child = children[i];
+                    if (fileIndex.isExcluded(child)) {
+                        continue;
+                    }
+                    if (child.isDirectory()) {
+                        pending.push(child);
+                    } else {
+                        collect(child, batch);
+                    }
+                }
+            });
+            if (batch.size() >= BATCH_SIZE) {
+                flush(batch);
+            }
+        }
+        flush(batch);
+        indicator.setText2(String.format("已遍历 %d 个目录, 找到 %d 个文件", walkedDirectories.incrementAndGet(), files.size()));
+    }
+
+    // 只在读操作中调用; 二进制文件无法作为文本放入 Prompt, 直接跳过
+    private void collect(VirtualFile file, List<VirtualFile> batch) {
+        if (file.getFileType().isBinary()) {
+            return;
+        }
+        if (files.add(file)) {
+            batch.add(file);
+        }
+    }
+
+    private void flush(List<VirtualFile> batch) {
+        if (!batch.isEmpty()) {
+            // 对话框内部排队并分批插入, 交出副本后复用列表
+            dialog.addFiles(new ArrayList<>(batch));
+            batch.clear();
+        }
+    }
+
+    private boolean isStopped(ProgressIndicator indicator) {
+        return indicator.isCanceled() || dialog.isDisposed();
+    }
+
+    private static void await(Future<?> walk, ProgressIndicator indicator) {
+        while (true) {
+            indicator.checkCanceled();
+            try {
+                walk.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // 继续等待, 期间检查取消状态
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            } catch (CancellationException e) {
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    @Override
+    public void onSuccess() {
+        PerformanceLogger.logTime("collectFiles (" + files.size() + " files)", startTime);
+    }
+
+    @Override
+    public void onCancel() {
+        LOG.info("Collect files cancelled with " + files.size() + " files found");
+    }
+
+    @Override
+    public void onThrowable(@NotNull Throwable error) {
+        LOG.warn("Collect files failed", error);
+        Messages.showErrorDialog(myProject, "收集文件失败：" + error.getMessage(), "Codebase2Prompt");
+    }
+}
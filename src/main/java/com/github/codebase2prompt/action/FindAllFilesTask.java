@@ -0,0 +1,91 @@
+package com.github.codebase2prompt.action;
+
+import com.github.codebase2prompt.ui.PromptGeneratorDialog;
+import com.github.codebase2prompt.util.PerformanceLogger;
+import com.intellij.find.FindModel;
+import com.intellij.find.impl.FindInProjectUtil;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Segment;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.usages.FindUsagesProcessPresentation;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用 Find in Files 当前的搜索条件在后台重新搜索, 把匹配的文件陆续加入已打开的对话框
+ * <p>
+ * 不经过搜索弹窗的预览表格, 因此没有 100/1000 条的结果上限; 可取消, 对话框关闭时搜索随之停止
+ */
+public class FindAllFilesTask extends Task.Backgroundable {
+    private static final Logger LOG = Logger.getInstance(FindAllFilesTask.class);
+
+    private final FindModel findModel;
+    private final PromptGeneratorDialog dialog;
+    // 按文件去重, 搜索线程并发写入
+    private final Set<VirtualFile> files = ConcurrentHashMap.newKeySet();
+    private long startTime;
+
+    /**
+     * @param dialog 接收结果的对话框, 在启动任务之后显示
+     */
+    public FindAllFilesTask(@NotNull Project project, @NotNull FindModel findModel, @NotNull PromptGeneratorDialog dialog) {
+        super(project, "Codebase2Prompt: 搜索全部匹配文件", true);
+        this.findModel = findModel.clone();
+        this.dialog = dialog;
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        startTime = System.currentTimeMillis();
+        indicator.setIndeterminate(true);
+        indicator.setText("正在搜索: " + findModel.getStringToFind());
+        FindUsagesProcessPresentation presentation =
+            new FindUsagesProcessPresentation(FindInProjectUtil.setupViewPresentation(findModel));
+        try {
+            FindInProjectUtil.findUsages(findModel, myProject, usageInfo -> {
+                VirtualFile file = usageInfo.getVirtualFile();
+                if (file == null) {
+                    return !indicator.isCanceled();
+                }
+                // 匹配位置先于文件写入, 片段模式按它只输出匹配的行
+                Segment segment = ReadAction.compute(usageInfo::getSegment);
+                if (segment != null) {
+                    dialog.getMatchRanges().add(file, segment.getStartOffset(), segment.getEndOffset());
+                }
+                if (files.add(file)) {
+                    // 对话框内部排队并分批插入, 这里逐个交出即可
+                    dialog.addFiles(Collections.singletonList(file));
+                    indicator.setText2(String.format("已找到 %d 个文件", files.size()));
+                }
+                return !indicator.isCanceled() && !dialog.isDisposed();
+            }, presentation);
+        } finally {
+            // 对话框是模态的, onSuccess/onCancel 要等对话框关闭才会执行, 结束状态在这里通知
+            dialog.finishLoading();
+        }
+    }
+
+    @Override
+    public void onSuccess() {
+        PerformanceLogger.logTime("findAllFiles (" + files.size() + " files)", startTime);
+    }
+
+    @Override
+    public void onCancel() {
+        LOG.info("Find all files cancelled with " + files.size() + " files found");
+    }
+
+    @Override
+    public void onThrowable(@NotNull Throwable error) {
+        LOG.warn("Find all files failed", error);
+        Messages.showErrorDialog(myProject, "搜索失败：" + error.getMessage(), "Codebase2Prompt");
+    }
+}
@@ -1,64 +1,56 @@
 package com.github.codebase2prompt.action;
 
-import java.awt.AWTEvent;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Container;
-import java.awt.Toolkit;
-import java.awt.event.AWTEventListener;
-import java.awt.event.ContainerEvent;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.util.HashSet;
-import java.util.Set;
+import java.awt.FlowLayout;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.swing.JButton;
 import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.JTable;
 import javax.swing.SwingUtilities;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableModel;
 
 import org.jetbrains.annotations.NotNull;
 
 import com.github.codebase2prompt.ui.PromptGeneratorDialog;
+import com.intellij.find.FindManager;
+import com.intellij.find.FindModel;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Segment;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.wm.ToolWindow;
-import com.intellij.openapi.wm.ToolWindowManager;
 import com.intellij.openapi.wm.ex.ToolWindowManagerListener;
-import com.intellij.psi.PsiFile;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentManager;
 import com.intellij.usageView.UsageInfo;
 import com.intellij.usages.UsageInfo2UsageAdapter;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
 //import  com.intellij.find.impl.FindPopupPanel;
 
 public class FindInFilesListener implements ToolWindowManagerListener {
     private static final Logger LOG = Logger.getInstance(FindInFilesListener.class);
     private static final String FIND_POPUP_PANEL_CLASS = "com.intellij.find.impl.FindPopupPanel";
+    // 按钮面板的组件名, 用于判断弹窗中是否已添加过按钮
+    private static final String BUTTON_PANEL_NAME = "codebase2prompt.buttons";
 
-    private AWTEventListener awtEventListener;
     private final Project project;
 
-
-
     public FindInFilesListener(Project project) {
         this.project = project;
-        setupWindowListener();
-    }
-
-    @Override
-    public void stateChanged(@NotNull ToolWindowManager toolWindowManager) {
-        ToolWindow toolWindow = toolWindowManager.getToolWindow("Find");
-        if (toolWindow != null) {
-            LOG.debug("Find toolWindow created");
-            // 只要窗口存在就添加监听器
-            setupWindowListener();
-        }
     }
 
-
     public void toolWindowShown(@NotNull ToolWindow toolWindow) {
         if ("Find".equals(toolWindow.getId())) {
             LOG.debug("Find window shown");
@@ -66,24 +58,6 @@ public class FindInFilesListener implements ToolWindowManagerListener {
         }
     }
 
-    private void setupWindowListener() {
-        if (awtEventListener == null) {
-            awtEventListener = event -> {
-                if (event.getID() == ContainerEvent.COMPONENT_ADDED) {
-                    ContainerEvent containerEvent = (ContainerEvent) event;
-                    Component child = containerEvent.getChild();
-                    if (isFindPopupPanel(child)) {
-                        LOG.info("FindPopupPanel component detected, adding Codebase2Prompt button");
-                        addButtonToFindPopupPanel(child);
-                    }
-                }
-            };
-            Toolkit.getDefaultToolkit()
-                .addAWTEventListener(awtEventListener, AWTEvent.CONTAINER_EVENT_MASK);
-            LOG.debug("AWT event listener setup completed");
-        }
-    }
-
     private void processToolWindow(ToolWindow toolWindow) {
         ContentManager contentManager = toolWindow.getContentManager();
         Content[] contents = contentManager.getContents();
@@ -116,34 +90,77 @@ public class FindInFilesListener implements ToolWindowManagerListener {
                component.getClass().getName().equals(FIND_POPUP_PANEL_CLASS);
     }
 
-    private void addButtonToFindPopupPanel(Component findPopupPanel) {
+    void addButtonToFindPopupPanel(Component findPopupPanel) {
         // 确保在 EDT 线程中执行 UI 操作
         if (!SwingUtilities.isEventDispatchThread()) {
             SwingUtilities.invokeLater(() -> addButtonToFindPopupPanel(findPopupPanel));
             return;
         }
+        // 弹窗面板会被复用, 已添加过按钮时不再重复添加
+        Container popupParent = findPopupPanel.getParent();
+        if (popupParent != null) {
+            for (Component component : popupParent.getComponents()) {
+                if (BUTTON_PANEL_NAME.equals(component.getName())) {
+                    return;
+                }
+            }
+        }
 
         JButton myButton = new JButton("Codebase2Prompt");
         myButton.addActionListener(event -> {
             LOG.info("Codebase2Prompt button clicked");
 
-            // 获取 PsiFile 列表
-            Set<PsiFile> psiFileSet = getPsiFileList(findPopupPanel);
-            if (psiFileSet != null) {
-                // 将 Set 转换为数组
-                PsiFile[] psiFiles = psiFileSet.toArray(new PsiFile[0]);
-                // 创建并显示对话框
-                PromptGeneratorDialog dialog = new PromptGeneratorDialog(project, psiFiles);
-                dialog.show();
-            } else {
+            // EDT 上只复制表格中的行对象, 解析文件和去重在后台读操作中完成
+            Object[] rows = copyResultRows(findPopupPanel);
+            if (rows == null) {
                 LOG.warn("Could not retrieve file list.");
+                return;
+            }
+            // 对话框立即打开, 文件解析完成后再加入
+            PromptGeneratorDialog dialog = new PromptGeneratorDialog(project);
+            ReadAction.nonBlocking(() -> getFileList(rows))
+                .expireWith(dialog.getDisposable())
+                .submit(AppExecutorUtil.getAppExecutorService())
+                .onProcessed(matches -> {
+                    if (matches != null) {
+                        // 匹配位置先于文件写入, 片段模式按它只输出匹配的行
+                        matches.forEach((file, ranges) -> {
+                            for (TextRange range : ranges) {
+                                dialog.getMatchRanges().add(file, range.getStartOffset(), range.getEndOffset());
+                            }
+                        });
+                        dialog.addFiles(matches.keySet());
+                    }
+                    dialog.finishLoading();
+                });
+            dialog.show();
+        });
+
+        // 按当前搜索条件在后台重新搜索, 不受弹窗结果数量上限的限制
+        JButton findAllButton = new JButton("Codebase2Prompt (全部结果)");
+        findAllButton.setToolTipText("在后台重新执行当前搜索, 收集所有匹配的文件, 不受 100/1000 条结果上限限制");
+        findAllButton.addActionListener(event -> {
+            LOG.info("Codebase2Prompt find all button clicked");
+            FindModel findModel = getFindModel(findPopupPanel);
+            if (findModel.getStringToFind().isEmpty()) {
+                LOG.warn("Find model has no search string.");
+                return;
             }
+            // 搜索在后台进行, 结果陆续加入对话框; 对话框是模态的, 需要先启动任务再显示
+            PromptGeneratorDialog dialog = new PromptGeneratorDialog(project);
+            ProgressManager.getInstance().run(new FindAllFilesTask(project, findModel, dialog));
+            dialog.show();
         });
 
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        buttonPanel.setName(BUTTON_PANEL_NAME);
+        buttonPanel.add(myButton);
+        buttonPanel.add(findAllButton);
+
         // 使用更可靠的方式添加按钮
         Container parent = findPopupPanel.getParent();
         if (parent != null && parent.getLayout() instanceof BorderLayout) {
-            parent.add(myButton, BorderLayout.SOUTH);
+            parent.add(buttonPanel, BorderLayout.SOUTH);
             parent.revalidate();
             parent.repaint();
             LOG.info("Added Codebase2Prompt button to FindPopupPanel.");
@@ -152,78 +169,86 @@ public class FindInFilesListener implements ToolWindowManagerListener {
         }
     }
 
-    private Set<PsiFile> getPsiFileList(Component findPopupPanel) {
+    /**
+     * 复制预览表格第一列的行对象, 只做数组拷贝, 在 EDT 上执行
+     */
+    private Object[] copyResultRows(Component findPopupPanel) {
         try {
             // 1. 先获取 myResultsPreviewTable (兼容 2020.1)
-            Field tableField = findFieldInHierarchy(findPopupPanel.getClass(), "myResultsPreviewTable");
-            if (tableField == null) {
+            Object table = FindPopupAccessors.getResultsTable(findPopupPanel);
+            if (!(table instanceof JTable)) {
                 LOG.error("Could not find myResultsPreviewTable field in FindPopupPanel or its superclasses");
                 return null;
             }
-            tableField.setAccessible(true);
-            JComponent table = (JComponent) tableField.get(findPopupPanel);
+            // 2. 复制 table model 中的行
+            TableModel model = ((JTable) table).getModel();
+            Object[] rows = new Object[model.getRowCount()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = model.getValueAt(i, 0);
+            }
+            return rows;
+        } catch (Throwable e) {
+            LOG.error("Error getting file list", e);
+            return null;
+        }
+    }
 
-            // 2. 获取 table 的 model
-            Field modelField = findFieldInHierarchy(table.getClass(), "dataModel");
-            if (modelField == null) {
-                LOG.error("Could not find dataModel field in table");
-                return null;
+    /**
+     * 从搜索结果的行中收集文件及其匹配位置, 按文件去重, 只取 VirtualFile, 不解析 PsiFile; 在后台读操作中执行
+     */
+    private static Map<VirtualFile, List<TextRange>> getFileList(Object[] rows) {
+        Map<VirtualFile, List<TextRange>> matches = new LinkedHashMap<>();
+        for (int i = 0; i < rows.length; i++) {
+            Object valueItem;
+            try {
+                // 2024.1 之后行对象包装为 FindPopupItem
+                valueItem = FindPopupAccessors.unwrapRow(rows[i]);
+            } catch (Throwable e) {
+                LOG.warn("Error handling FindPopupItem", e);
+                valueItem = rows[i];
             }
-            modelField.setAccessible(true);
-            DefaultTableModel model = (DefaultTableModel) modelField.get(table);
-
-            // 2. 遍历 model 中的数据并使用 HashSet 去重
-            Set<PsiFile> psiFileSet = new HashSet<>();
-            for (int i = 0; i < model.getRowCount(); i++) {
-                Object value = model.getValueAt(i, 0);
-                Object valueItem = value;
-
-                // 使用反射检查是否存在 FindPopupItem 类(兼容 2024.1)
-                try {
-                    Class<?> findPopupItemClass = Class.forName("com.intellij.find.impl.FindPopupItem");
-                    if (findPopupItemClass.isInstance(value)) {
-                        // 如果是 FindPopupItem 类型，通过反射获取 usage
-                        Method getUsageMethod = findPopupItemClass.getMethod("getUsage");
-                        valueItem = getUsageMethod.invoke(value);
-                    }
-                } catch (ClassNotFoundException e) {
-                    // FindPopupItem 类不存在，说明是旧版本 IDEA，直接使用原值
-                    valueItem = value;
-                } catch (Exception e) {
-                    LOG.warn("Error handling FindPopupItem", e);
-                    valueItem = value;
-                }
 
-                if (valueItem instanceof UsageInfo2UsageAdapter) {
-                    UsageInfo2UsageAdapter usageAdapter = (UsageInfo2UsageAdapter) valueItem;
-                    UsageInfo usageInfo = usageAdapter.getUsageInfo();
-                    PsiFile psiFile = usageInfo.getFile();
-                    if (psiFile != null) {
-                        psiFileSet.add(psiFile);
-                    }
-                } else {
-                    if (i == 0) {
-                        LOG.warn("Model row class not defined: " + value.getClass().getName());
+            if (valueItem instanceof UsageInfo2UsageAdapter) {
+                UsageInfo2UsageAdapter usage = (UsageInfo2UsageAdapter) valueItem;
+                VirtualFile file = usage.getUsageInfo().getVirtualFile();
+                if (file != null) {
+                    List<TextRange> ranges = matches.computeIfAbsent(file, f -> new ArrayList<>());
+                    // 同一行的多个匹配合并在一行结果中
+                    for (UsageInfo usageInfo : usage.getMergedInfos()) {
+                        Segment segment = usageInfo.getSegment();
+                        if (segment != null) {
+                            ranges.add(TextRange.create(segment));
+                        }
                     }
                 }
+            } else if (i == 0 && rows[i] != null) {
+                LOG.warn("Model row class not defined: " + rows[i].getClass().getName());
             }
-            return psiFileSet;
-
-        } catch (IllegalAccessException e) {
-            LOG.error("Error getting file list", e);
         }
-        return null;
+        return matches;
     }
-    private Field findFieldInHierarchy(Class<?> startClass, String fieldName) {
-        Class<?> currentClass = startClass;
-        while (currentClass != null) {
-            try {
-                return currentClass.getDeclaredField(fieldName);
-            } catch (NoSuchFieldException e) {
-                currentClass = currentClass.getSuperclass();
+
+    /**
+     * 取搜索弹窗当前的搜索条件: 优先读取弹窗 myHelper 中的模型并写入界面上的最新输入,
+     * 取不到时使用项目级的 Find in Files 模型
+     */
+    private FindModel getFindModel(Component findPopupPanel) {
+        FindModel projectModel = FindManager.getInstance(project).getFindInProjectModel();
+        try {
+            FindModel helperModel = FindPopupAccessors.getHelperModel(findPopupPanel);
+            if (helperModel == null) {
+                return projectModel;
+            }
+            FindModel model = helperModel.clone();
+            // 界面上的输入可能还没有写回模型
+            if (!FindPopupAccessors.applyTo(findPopupPanel, model)) {
+                LOG.debug("FindPopupPanel.applyTo not available, using helper model");
             }
+            return model;
+        } catch (Throwable e) {
+            LOG.warn("Could not read find model from FindPopupPanel, using project find model", e);
+            return projectModel;
         }
-        return null;
     }
 
     // 官方说这是内部API, 不建议使用
@@ -242,6 +267,8 @@ public class FindInFilesListener implements ToolWindowManagerListener {
     public static class FindInFilesStartupActivity implements StartupActivity.DumbAware {
         @Override
         public void runActivity(@NotNull Project project) {
+            // 搜索弹窗钩子是应用级的, 只在第一个项目启动时注册
+            FindPopupHook.install();
             MessageBusConnection connection = project.getMessageBus().connect();
             connection.subscribe(ToolWindowManagerListener.TOPIC, new FindInFilesListener(project));
         }
@@ -0,0 +1,141 @@
+package com.github.codebase2prompt.action;
+
+import com.intellij.find.FindModel;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * FindPopupPanel 内部成员的反射访问, 每个类只查找一次并缓存为 MethodHandle
+ * <p>
+ * 找不到的成员缓存为 null, 调用方按不支持处理, 不再重复查找
+ */
+final class FindPopupAccessors {
+    private static final Logger LOG = Logger.getInstance(FindPopupAccessors.class);
+    private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+
+    // FindPopupPanel.myResultsPreviewTable
+    private static final ClassValue<MethodHandle> RESULTS_TABLE = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return fieldGetter(type, "myResultsPreviewTable");
+        }
+    };
+
+    // FindPopupPanel.myHelper
+    private static final ClassValue<MethodHandle> HELPER = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return fieldGetter(type, "myHelper");
+        }
+    };
+
+    // FindUIHelper.getModel()
+    private static final ClassValue<MethodHandle> HELPER_MODEL = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return methodHandle(type, "getModel", OBJECT_GETTER);
+        }
+    };
+
+    // FindPopupPanel.applyTo(FindModel), 把界面上的输入写入模型
+    private static final ClassValue<MethodHandle> APPLY_TO = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return methodHandle(type, "applyTo", MethodType.methodType(void.class, Object.class, Object.class), FindModel.class);
+        }
+    };
+
+    // FindPopupItem.getUsage(), FindPopupItem 在 2024.1 之前不存在
+    private static final Class<?> FIND_POPUP_ITEM_CLASS = loadClass("com.intellij.find.impl.FindPopupItem");
+    private static final MethodHandle FIND_POPUP_ITEM_USAGE =
+        FIND_POPUP_ITEM_CLASS == null ? null : methodHandle(FIND_POPUP_ITEM_CLASS, "getUsage", OBJECT_GETTER);
+
+    private FindPopupAccessors() {
+    }
+
+    static @Nullable Object getResultsTable(Object findPopupPanel) throws Throwable {
+        MethodHandle getter = RESULTS_TABLE.get(findPopupPanel.getClass());
+        return getter == null ? null : (Object) getter.invokeExact(findPopupPanel);
+    }
+
+    static @Nullable FindModel getHelperModel(Object findPopupPanel) throws Throwable {
+        MethodHandle helperGetter = HELPER.get(findPopupPanel.getClass());
+        Object helper = helperGetter == null ? null : (Object) helperGetter.invokeExact(findPopupPanel);
+        if (helper == null) {
+            return null;
+        }
+        MethodHandle modelGetter = HELPER_MODEL.get(helper.getClass());
+        return modelGetter == null ? null : (FindModel) (Object) modelGetter.invokeExact(helper);
+    }
+
+    /**
+     * @return 弹窗是否支持 applyTo, 不支持时模型保持不变
+     */
+    static boolean applyTo(Object findPopupPanel, FindModel model) throws Throwable {
+        MethodHandle applyTo = APPLY_TO.get(findPopupPanel.getClass());
+        if (applyTo == null) {
+            return false;
+        }
+        applyTo.invokeExact(findPopupPanel, (Object) model);
+        return true;
+    }
+
+    /**
+     * 预览表格中的行在 2024.1 之后包装为 FindPopupItem, 取出其中的 Usage; 其他对象原样返回
+     */
+    static Object unwrapRow(Object row) throws Throwable {
+        if (FIND_POPUP_ITEM_USAGE != null && FIND_POPUP_ITEM_CLASS.isInstance(row)) {
+            return (Object) FIND_POPUP_ITEM_USAGE.invokeExact(row);
+        }
+        return row;
+    }
+
+    private static @Nullable MethodHandle fieldGetter(Class<?> type, String name) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            try {
+                Field field = current.getDeclaredField(name);
+                field.setAccessible(true);
+                return MethodHandles.lookup().unreflectGetter(field).asType(OBJECT_GETTER);
+            } catch (NoSuchFieldException e) {
+                // 继续在父类中查找
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warn("Cannot access field " + name + " of " + type.getName(), e);
+                return null;
+            }
+        }
+        LOG.warn("Could not find field " + name + " in " + type.getName() + " or its superclasses");
+        return null;
+    }
+
+    private static @Nullable MethodHandle methodHandle(Class<?> type, String name, MethodType erasedType, Class<?>... parameterTypes) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            try {
+                Method method = current.getDeclaredMethod(name, parameterTypes);
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method).asType(erasedType);
+            } catch (NoSuchMethodException e) {
+                // 继续在父类中查找
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warn("Cannot access method " + name + " of " + type.getName(), e);
+                return null;
+            }
+        }
+        LOG.debug("Method " + name + " not available in " + type.getName());
+        return null;
+    }
+
+    private static @Nullable Class<?> loadClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            // 旧版本 IDEA 没有该类
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.codebase2prompt.action;
+
+import com.intellij.ide.DataManager;
+import com.intellij.openapi.actionSystem.ActionManager;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.actionSystem.ex.AnActionListener;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.AWTEventListener;
+import java.awt.event.ContainerEvent;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 应用级的搜索弹窗钩子, 整个 IDE 只注册一次
+ * <p>
+ * 平时不监听任何 AWT 事件. 执行 Find in Files / Replace in Files 时才安装 AWTEventListener,
+ * 找到 FindPopupPanel 并添加按钮后立即移除; 超时未出现弹窗时同样移除.
+ * 记录检查过的事件数和耗时, 每次移除时写入日志
+ */
+public final class FindPopupHook implements AnActionListener {
+    private static final Logger LOG = Logger.getInstance(FindPopupHook.class);
+    private static final AtomicBoolean INSTALLED = new AtomicBoolean();
+    private static final String FIND_POPUP_PANEL_CLASS = "com.intellij.find.impl.FindPopupPanel";
+    private static final String[] FIND_ACTION_IDS = {"FindInPath", "ReplaceInPath"};
+    // 动作执行后等待弹窗出现的最长时间
+    private static final int ARM_TIMEOUT_MS = 5000;
+
+    private final Timer disarmTimer = new Timer(ARM_TIMEOUT_MS, e -> disarm("timeout"));
+    private AWTEventListener awtEventListener;
+    private Project armedProject;
+
+    // 以下统计只在 EDT 上修改, 每次 disarm 时写入日志
+    private long activationCount;
+    private long inspectedEvents;
+    private long inspectNanos;
+
+    private FindPopupHook() {
+        disarmTimer.setRepeats(false);
+    }
+
+    /**
+     * 注册到应用消息总线, 多个项目启动时重复调用只生效一次
+     */
+    public static void install() {
+        if (INSTALLED.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().getMessageBus().connect()
+                .subscribe(AnActionListener.TOPIC, new FindPopupHook());
+            LOG.info("FindPopupHook installed");
+        }
+    }
+
+    /**
+     * 2020.3 起平台调用该重载, 覆盖后不再转调下面已废弃的重载
+     */
+    @Override
+    public void beforeActionPerformed(@NotNull AnAction action, @NotNull AnActionEvent event) {
+        armIfFindAction(action, event);
+    }
+
+    /**
+     * 2020.1 / 2020.2 只有该重载, sinceBuild 为 201, 必须保留
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void beforeActionPerformed(@NotNull AnAction action, @NotNull DataContext dataContext, @NotNull AnActionEvent event) {
+        armIfFindAction(action, event);
+    }
+
+    private void armIfFindAction(AnAction action, AnActionEvent event) {
+        String actionId = ActionManager.getInstance().getId(action);
+        for (String findActionId : FIND_ACTION_IDS) {
+            if (findActionId.equals(actionId)) {
+                // 动作在 EDT 上执行, 弹窗可能在 actionPerformed 中同步显示, 必须在此之前安装
+                arm(event.getProject());
+                return;
+            }
+        }
+    }
+
+    private void arm(Project project) {
+        armedProject = project;
+        disarmTimer.restart();
+        if (awtEventListener != null) {
+            return;
+        }
+        activationCount++;
+        awtEventListener = event -> {
+            long t0 = System.nanoTime();
+            inspectedEvents++;
+            if (event.getID() == ContainerEvent.COMPONENT_ADDED) {
+                Component child = ((ContainerEvent) event).getChild();
+                if (child != null && FIND_POPUP_PANEL_CLASS.equals(child.getClass().getName())) {
+                    inspectNanos += System.nanoTime() - t0;
+                    onFindPopupShown(child);
+                    return;
+                }
+            }
+            inspectNanos += System.nanoTime() - t0;
+        };
+        Toolkit.getDefaultToolkit().addAWTEventListener(awtEventListener, AWTEvent.CONTAINER_EVENT_MASK);
+    }
+
+    private void onFindPopupShown(Component findPopupPanel) {
+        Project project = armedProject;
+        disarm("popup shown");
+        if (project == null || project.isDisposed()) {
+            // 弹窗所在的项目以弹窗自身的数据上下文为准
+            project = DataManager.getInstance().getDataContext(findPopupPanel).getData(CommonDataKeys.PROJECT);
+        }
+        if (project != null) {
+            LOG.info("FindPopupPanel component detected, adding Codebase2Prompt button");
+            new FindInFilesListener(project).addButtonToFindPopupPanel(findPopupPanel);
+        }
+    }
+
+    private void disarm(String reason) {
+        disarmTimer.stop();
+        armedProject = null;
+        if (awtEventListener == null) {
+            return;
+        }
+        Toolkit.getDefaultToolkit().removeAWTEventListener(awtEventListener);
+        awtEventListener = null;
+        LOG.info(String.format("FindPopupHook disarmed (%s): %d events inspected in %.3f ms over %d activations",
+            reason, inspectedEvents, inspectNanos / 1_000_000.0, activationCount));
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.codebase2prompt.action;
+
+import com.github.codebase2prompt.ui.PromptGeneratorDialog;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 项目视图、编辑器标签页和变更列表的右键菜单入口: 用选中的文件和目录打开对话框
+ */
+public class GeneratePromptFromSelectionAction extends AnAction implements DumbAware {
+    private static final Logger LOG = Logger.getInstance(GeneratePromptFromSelectionAction.class);
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        VirtualFile[] files = getSelectedFiles(e);
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null && files != null && files.length > 0);
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        VirtualFile[] files = getSelectedFiles(e);
+        if (project == null || files == null || files.length == 0) {
+            return;
+        }
+        LOG.info("Codebase2Prompt action invoked with " + files.length + " selected items");
+        // 目录在后台遍历, 文件陆续加入对话框; 对话框是模态的, 需要先启动任务再显示
+        PromptGeneratorDialog dialog = new PromptGeneratorDialog(project);
+        ProgressManager.getInstance().run(new CollectFilesTask(project, files, dialog));
+        dialog.show();
+    }
+
+    @Nullable
+    private static VirtualFile[] getSelectedFiles(AnActionEvent e) {
+        VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        if (files != null && files.length > 0) {
+            return files;
+        }
+        // 编辑器标签页只提供单个文件
+        VirtualFile file = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        return file == null ? null : new VirtualFile[]{file};
+    }
+}
@@ -0,0 +1,395 @@
+package com.github.codebase2prompt.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 字节对编码 (BPE) 分词器, 读取 tiktoken 格式的词表 (每行 "base64(token) rank")
+ * <p>
+ * 词表保存在一个连续的字节池和开放寻址哈希表中, 查询和合并过程不分配对象,
+ * 调用方通过 {@link Scratch} 复用缓冲区
+ */
+public final class BpeTokenizer {
+    // 片段哈希 (FNV-1a), 调用方在编码 UTF-8 时顺带计算, 整段查询时不必再遍历一次
+    static final int FNV_OFFSET = 0x811C9DC5;
+    static final int FNV_PRIME = 0x01000193;
+    // 不超过该字节数的片段每轮扫描找最小 rank, 片段短时最快; 更长的片段用最小堆合并, 避免平方复杂度
+    static final int LINEAR_MERGE_MAX_BYTES = 64;
+
+    // 词表条目压缩为一个 long, 一次内存访问即可判断是否匹配; 0 表示空槽 (条目长度至少为 1)
+    private static final int OFFSET_BITS = 24;
+    private static final int LENGTH_BITS = 10;
+    private static final int RANK_BITS = 20;
+    private static final int TAG_SHIFT = OFFSET_BITS + LENGTH_BITS + RANK_BITS;
+
+    private final byte[] pool;
+    // 低位到高位: 池中偏移, 长度, rank, 哈希高 10 位 (不同片段大多在比较字节前就被排除)
+    private final long[] slots;
+    private final int mask;
+    private final int size;
+    // 两字节序列的 rank (下标为两个字节拼成的 16 位整数), 合并开始时的相邻字节对直接查表, 不计算哈希
+    private final int[] bytePairRanks = new int[1 << 16];
+
+    private BpeTokenizer(byte[] pool, int[] offsets, int[] lengths, int[] ranks, int count) {
+        // 负载因子不超过 0.8: 线性探测的后续槽位多在同一缓存行, 表小一半比探测次数少更重要
+        int capacity = Integer.highestOneBit(Math.max(16, count + count / 4 - 1)) << 1;
+        this.pool = pool;
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+        this.size = count;
+        Arrays.fill(bytePairRanks, -1);
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] == 2) {
+                bytePairRanks[((pool[offsets[i]] & 0xFF) << 8) | (pool[offsets[i] + 1] & 0xFF)] = ranks[i];
+            }
+            int h = hash(pool, offsets[i], lengths[i]);
+            int slot = h & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ((long) tag(h) << TAG_SHIFT) | ((long) ranks[i] << (OFFSET_BITS + LENGTH_BITS))
+                | ((long) lengths[i] << OFFSET_BITS) | offsets[i];
+        }
+    }
+
+    /**
+     * 读取 tiktoken 格式的词表
+     *
+     * @param in 词表输入流, 读取后由调用方关闭
+     * @return 分词器
+     * @throws IOException 读取失败或格式错误
+     */
+    public static BpeTokenizer load(InputStream in) throws IOException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] pool = new byte[1 << 20];
+        int[] offsets = new int[1 << 16];
+        int[] lengths = new int[1 << 16];
+        int[] ranks = new int[1 << 16];
+        int poolSize = 0;
+        int count = 0;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space <= 0) {
+                throw new IOException("Invalid vocabulary line: " + line);
+            }
+            byte[] token;
+            int rank;
+            try {
+                token = decoder.decode(line.substring(0, space));
+                rank = Integer.parseInt(line.substring(space + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid vocabulary line: " + line, e);
+            }
+
+            if (token.length == 0 || token.length >= 1 << LENGTH_BITS || rank < 0 || rank >= 1 << RANK_BITS
+                || poolSize + token.length > 1 << OFFSET_BITS) {
+                throw new IOException("Unsupported vocabulary entry: " + line);
+            }
+            if (poolSize + token.length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + token.length));
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                ranks = Arrays.copyOf(ranks, count * 2);
+            }
+            System.arraycopy(token, 0, pool, poolSize, token.length);
+            offsets[count] = poolSize;
+            lengths[count] = token.length;
+            ranks[count] = rank;
+            poolSize += token.length;
+            count++;
+        }
+        if (count == 0) {
+            throw new IOException("Empty vocabulary");
+        }
+        return new BpeTokenizer(Arrays.copyOf(pool, poolSize), offsets, lengths, ranks, count);
+    }
+
+    public int getVocabularySize() {
+        return size;
+    }
+
+    /**
+     * 统计一个预分词片段 (UTF-8 字节) 编码后的 Token 数量, 片段不切分, 与完整编码的结果一致
+     *
+     * @param fnvHash 片段字节的 FNV-1a 哈希 (见 {@link #FNV_OFFSET})
+     */
+    int countPieceTokens(byte[] bytes, int length, int fnvHash, Scratch scratch) {
+        if (length <= 1) {
+            return length;
+        }
+        int h = mix(fnvHash);
+        // 代码中的片段大量重复, 先查按线程的直接映射缓存, 命中时不必访问词表或合并;
+        // 条目为 (哈希, 长度, Token 数), 命中时再逐字节比较, 哈希冲突不会返回错误结果
+        boolean cacheable = length <= Scratch.CACHE_MAX_BYTES;
+        int slot = h & (Scratch.CACHE_SIZE - 1);
+        int cacheOffset = slot * Scratch.CACHE_MAX_BYTES;
+        long key = ((long) h << 32) | ((long) length << 8);
+        long entry = scratch.cacheEntries[slot];
+        if (cacheable && (entry & ~0xFFL) == key && regionEquals(bytes, 0, scratch.cacheBytes, cacheOffset, length)) {
+            return (int) entry & 0xFF;
+        }
+
+        int count;
+        if (rank(bytes, 0, length, h) >= 0) {
+            // 常见片段本身就是一个 Token
+            count = 1;
+        } else {
+            count = length <= LINEAR_MERGE_MAX_BYTES
+                ? linearMergeCount(bytes, length, scratch)
+                : heapMergeCount(bytes, length, scratch);
+        }
+        if (cacheable) {
+            System.arraycopy(bytes, 0, scratch.cacheBytes, cacheOffset, length);
+            scratch.cacheEntries[slot] = key | count;
+        }
+        return count;
+    }
+
+    private int linearMergeCount(byte[] bytes, int n, Scratch scratch) {
+        // starts[k] 为第 k 个部分的起始位置, starts[parts] 为结束位置
+        int[] starts = scratch.starts;
+        int[] pairRanks = scratch.pairRanks;
+        int parts = n;
+        for (int k = 0; k <= n; k++) {
+            starts[k] = k;
+        }
+        for (int k = 0; k < parts - 1; k++) {
+            pairRanks[k] = byteRank(bytes, k);
+        }
+
+        while (parts > 1) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int k = 0; k < parts - 1; k++) {
+                int r = pairRanks[k];
+                if (r >= 0 && r < bestRank) {
+                    bestRank = r;
+                    best = k;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+
+            // 合并 best 与 best + 1, 删除边界 starts[best + 1]
+            System.arraycopy(starts, best + 2, starts, best + 1, parts - best - 1);
+            System.arraycopy(pairRanks, best + 1, pairRanks, best, parts - best - 2);
+            parts--;
+            if (best < parts - 1) {
+                pairRanks[best] = rank(bytes, starts[best], starts[best + 2] - starts[best]);
+            }
+            if (best > 0) {
+                pairRanks[best - 1] = rank(bytes, starts[best - 1], starts[best + 1] - starts[best - 1]);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * 与 {@link #linearMergeCount} 的合并顺序相同 (rank 最小者优先, 相同时取最左), 用链表和最小堆实现;
+     * 堆中的条目为 (rank, 部分起点), 部分被合并或 rank 变化后条目过期, 取出时跳过
+     */
+    private int heapMergeCount(byte[] bytes, int n, Scratch scratch) {
+        scratch.ensureMergeCapacity(n);
+        // next[k] / prev[k] 为以 k 起始的部分的后一个 / 前一个部分的起点, 部分 k 的结束位置即 next[k]
+        int[] next = scratch.next;
+        int[] prev = scratch.prev;
+        // 以 k 起始的部分与后一个部分合并后的 rank, -1 表示不能合并或部分已被合并掉
+        int[] pairRanks = scratch.heapPairRanks;
+        long[] heap = scratch.heap;
+        int heapSize = 0;
+        for (int k = 0; k < n; k++) {
+            next[k] = k + 1;
+            prev[k] = k - 1;
+        }
+        for (int k = 0; k < n - 1; k++) {
+            int r = byteRank(bytes, k);
+            pairRanks[k] = r;
+            if (r >= 0) {
+                heapSize = heapPush(heap, heapSize, ((long) r << 32) | k);
+            }
+        }
+        pairRanks[n - 1] = -1;
+
+        int parts = n;
+        while (heapSize > 0) {
+            long top = heap[0];
+            heapSize = heapPop(heap, heapSize);
+            int k = (int) top;
+            if (pairRanks[k] != (int) (top >>> 32)) {
+                continue;
+            }
+
+            // 合并 k 与后一个部分
+            int removed = next[k];
+            pairRanks[removed] = -1;
+            int end = next[removed];
+            next[k] = end;
+            if (end < n) {
+                prev[end] = k;
+            }
+            parts--;
+
+            int r = end < n ? rank(bytes, k, next[end] - k) : -1;
+            pairRanks[k] = r;
+            if (r >= 0) {
+                heapSize = heapPush(heap, heapSize, ((long) r << 32) | k);
+            }
+            int before = prev[k];
+            if (before >= 0) {
+                r = rank(bytes, before, end - before);
+                pairRanks[before] = r;
+                if (r >= 0) {
+                    heapSize = heapPush(heap, heapSize, ((long) r << 32) | before);
+                }
+            }
+        }
+        return parts;
+    }
+
+    private static int heapPush(long[] heap, int size, long value) {
+        int i = size;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+        return size + 1;
+    }
+
+    private static int heapPop(long[] heap, int size) {
+        int last = --size;
+        long value = heap[last];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (value <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+        return size;
+    }
+
+    private int byteRank(byte[] bytes, int offset) {
+        return bytePairRanks[((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF)];
+    }
+
+    /**
+     * 查询字节序列的 rank, 不存在时返回 -1
+     */
+    int rank(byte[] bytes, int offset, int length) {
+        return rank(bytes, offset, length, hash(bytes, offset, length));
+    }
+
+    private int rank(byte[] bytes, int offset, int length, int hash) {
+        long expected = ((long) tag(hash) << TAG_SHIFT) | ((long) length << OFFSET_BITS);
+        long keyMask = ((long) -1 << TAG_SHIFT) | (((1L << LENGTH_BITS) - 1) << OFFSET_BITS);
+        int slot = hash & mask;
+        long entry;
+        while ((entry = slots[slot]) != 0) {
+            if ((entry & keyMask) == expected
+                && regionEquals(bytes, offset, pool, (int) entry & ((1 << OFFSET_BITS) - 1), length)) {
+                return (int) (entry >>> (OFFSET_BITS + LENGTH_BITS)) & ((1 << RANK_BITS) - 1);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = FNV_OFFSET;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int tag(int hash) {
+        return hash >>> (32 - (64 - TAG_SHIFT));
+    }
+
+    /**
+     * 每个线程复用的缓冲区
+     */
+    static final class Scratch {
+        static final int CACHE_SIZE = 16384;
+        // 只缓存不超过该字节数的片段 (Token 数不超过 255), 缓存中保存片段字节用于比较
+        static final int CACHE_MAX_BYTES = 32;
+        final byte[] cacheBytes = new byte[CACHE_SIZE * CACHE_MAX_BYTES];
+        // 高 32 位哈希, 8~15 位长度, 低 8 位 Token 数; 长度为 0 表示空槽
+        final long[] cacheEntries = new long[CACHE_SIZE];
+        char[] chars = new char[0];
+        byte[] bytes = new byte[1024];
+        final int[] starts = new int[LINEAR_MERGE_MAX_BYTES + 1];
+        final int[] pairRanks = new int[LINEAR_MERGE_MAX_BYTES];
+        // 长片段的堆合并, 按需扩容
+        int[] next = new int[0];
+        int[] prev = new int[0];
+        int[] heapPairRanks = new int[0];
+        long[] heap = new long[0];
+
+        char[] chars(int capacity) {
+            if (chars.length < capacity) {
+                chars = new char[capacity];
+            }
+            return chars;
+        }
+
+        byte[] bytes(int capacity) {
+            if (bytes.length < capacity) {
+                bytes = new byte[Math.max(capacity, bytes.length * 2)];
+            }
+            return bytes;
+        }
+
+        void ensureMergeCapacity(int n) {
+            if (next.length < n) {
+                int capacity = Math.max(n, next.length * 2);
+                next = new int[capacity];
+                prev = new int[capacity];
+                heapPairRanks = new int[capacity];
+                // 每次合并最多放入两个新条目, 堆的大小不超过初始条目数加 2 倍合并次数
+                heap = new long[3 * capacity];
+            }
+        }
+    }
+}
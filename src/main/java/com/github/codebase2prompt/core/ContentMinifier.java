@@ -0,0 +1,359 @@
+package com.github.codebase2prompt.core;
+
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 节省 Tokens 的内容精简流水线: 删除注释、删除许可证头、合并 import、折叠空白
+ * <p>
+ * 注释识别使用各文件类型对应语言的 IntelliJ Lexer, 没有 ParserDefinition 的文件类型只做文本级处理.
+ * 结果按 (内容哈希, 文件类型, 启用的阶段) 缓存, 重复生成时不再重新词法分析
+ */
+public class ContentMinifier {
+    private static final Logger LOG = Logger.getInstance(ContentMinifier.class);
+    private static final int MAX_CACHE_ENTRIES = 2048;
+    private static final int LICENSE_SCAN_CHARS = 4096;
+    private static final Pattern LICENSE_KEYWORDS = Pattern.compile("(?i)copyright|licen[cs]e|spdx-license-identifier");
+    // 合并 import 只对这些语言 (Language ID) 生效
+    private static final Set<String> IMPORT_LANGUAGES = Set.of("JAVA", "kotlin");
+    // Java / Kotlin 的单行 import
+    private static final Pattern IMPORT_LINE = Pattern.compile("^import\\s+(static\\s+)?([\\w.]+)\\.([\\w*]+)\\s*;?\\s*$");
+
+    public enum Stage {
+        STRIP_LICENSE_HEADER,
+        STRIP_COMMENTS,
+        COLLAPSE_IMPORTS,
+        FOLD_WHITESPACE
+    }
+
+    private final Project project;
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private volatile Set<Stage> stages = EnumSet.noneOf(Stage.class);
+
+    public ContentMinifier(Project project) {
+        this.project = project;
+    }
+
+    public void setStages(@NotNull Set<Stage> stages) {
+        this.stages = stages.isEmpty() ? EnumSet.noneOf(Stage.class) : EnumSet.copyOf(stages);
+    }
+
+    public boolean isEnabled() {
+        return !stages.isEmpty();
+    }
+
+    /**
+     * 启用阶段的位掩码, 用于判断缓存的片段是否由相同的配置生成
+     */
+    public int getStagesMask() {
+        int mask = 0;
+        for (Stage stage : stages) {
+            mask |= 1 << stage.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * 按启用的阶段精简内容, 可在任意线程调用
+     *
+     * @param fileType 文件类型, 用于选择 Lexer
+     * @param content 行分隔符已统一为 \n 的文件内容
+     * @return 精简后的内容
+     */
+    public String minify(@NotNull FileType fileType, @NotNull String content) {
+        Set<Stage> current = stages;
+        if (current.isEmpty() || content.isEmpty()) {
+            return content;
+        }
+
+        String key = cacheKey(fileType, content, current);
+        synchronized (cache) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String result = content;
+        boolean stripLicense = current.contains(Stage.STRIP_LICENSE_HEADER);
+        boolean stripComments = current.contains(Stage.STRIP_COMMENTS);
+        if (stripLicense || stripComments) {
+            result = stripComments(fileType, result, stripComments);
+        }
+        if (current.contains(Stage.COLLAPSE_IMPORTS)) {
+            result = collapseImports(fileType, result);
+        }
+        if (current.contains(Stage.FOLD_WHITESPACE) || stripComments) {
+            result = foldWhitespace(result);
+        }
+
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * 用语言的 Lexer 找出注释 Token 并删除
+     *
+     * @param allComments true 删除所有注释, false 只删除文件开头的许可证注释
+     */
+    private String stripComments(FileType fileType, String content, boolean allComments) {
+        ParserDefinition definition = parserDefinition(fileType);
+        Lexer lexer = createLexer(definition);
+        if (lexer == null) {
+            return content;
+        }
+        TokenSet commentTokens = definition.getCommentTokens();
+
+        StringBuilder out = new StringBuilder(content.length());
+        int copied = 0;
+        boolean atFileStart = true;
+        lexer.start(content);
+        IElementType type;
+        while ((type = lexer.getTokenType()) != null) {
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            if (commentTokens.contains(type)) {
+                boolean license = atFileStart && start < LICENSE_SCAN_CHARS
+                    && LICENSE_KEYWORDS.matcher(content.subSequence(start, end)).find();
+                if (allComments || license) {
+                    out.append(content, copied, start);
+                    copied = end;
+                }
+            } else if (atFileStart && !isBlank(content, start, end)) {
+                atFileStart = false;
+                if (!allComments) {
+                    break;
+                }
+            }
+            lexer.advance();
+        }
+        out.append(content, copied, content.length());
+        return out.toString();
+    }
+
+    /**
+     * 合并连续的同包 import, 如 import java.util.{List, Map, Set};
+     * <p>
+     * 该阶段是有损的: Java 和 Kotlin 都没有分组 import 语法, 输出只供阅读, 不再是可编译的源码.
+     * 因此只处理 Java / Kotlin, 且只处理 Lexer 确认位于文件头部、以 import 关键字开头的行,
+     * 注释和字符串中的 import 文本不受影响
+     */
+    private String collapseImports(FileType fileType, String content) {
+        BitSet importLines = findImportLines(fileType, content);
+        if (importLines == null || importLines.cardinality() < 2) {
+            return content;
+        }
+
+        String[] lines = content.split("\n", -1);
+        StringBuilder out = new StringBuilder(content.length());
+        int i = 0;
+        while (i < lines.length) {
+            Matcher m = importLines.get(i) ? IMPORT_LINE.matcher(lines[i]) : null;
+            if (m == null || !m.matches()) {
+                appendLine(out, lines[i], i, lines.length);
+                i++;
+                continue;
+            }
+
+            String staticPart = m.group(1) != null ? "static " : "";
+            String pkg = m.group(2);
+            boolean semicolon = lines[i].trim().endsWith(";");
+            List<String> names = new ArrayList<>();
+            names.add(m.group(3));
+            int j = i + 1;
+            while (j < lines.length && importLines.get(j)) {
+                Matcher next = IMPORT_LINE.matcher(lines[j]);
+                if (!next.matches() || !pkg.equals(next.group(2))
+                    || !staticPart.equals(next.group(1) != null ? "static " : "")) {
+                    break;
+                }
+                names.add(next.group(3));
+                j++;
+            }
+
+            if (names.size() == 1) {
+                appendLine(out, lines[i], i, lines.length);
+            } else {
+                String line = "import " + staticPart + pkg + ".{" + String.join(", ", names) + "}" + (semicolon ? ";" : "");
+                appendLine(out, line, j - 1, lines.length);
+            }
+            i = j;
+        }
+        return out.toString();
+    }
+
+    /**
+     * 用 Lexer 找出文件头部 (package / import 区域) 中以 import 关键字开头的行
+     *
+     * @return 行号集合, 语言不是 Java / Kotlin 或没有 Lexer 时返回 null
+     */
+    private BitSet findImportLines(FileType fileType, String content) {
+        if (!(fileType instanceof LanguageFileType)
+            || !IMPORT_LANGUAGES.contains(((LanguageFileType) fileType).getLanguage().getID())) {
+            return null;
+        }
+        ParserDefinition definition = parserDefinition(fileType);
+        Lexer lexer = createLexer(definition);
+        if (lexer == null) {
+            return null;
+        }
+        TokenSet commentTokens = definition.getCommentTokens();
+
+        BitSet importLines = new BitSet();
+        int line = 0;
+        boolean lineStart = true;
+        lexer.start(content);
+        IElementType type;
+        while ((type = lexer.getTokenType()) != null) {
+            int start = lexer.getTokenStart();
+            int end = lexer.getTokenEnd();
+            int newlines = countNewlines(content, start, end);
+            if (isBlank(content, start, end)) {
+                lineStart |= newlines > 0;
+            } else if (commentTokens.contains(type)) {
+                // 跨行的块注释之后不算行首
+                lineStart &= newlines == 0;
+            } else {
+                if (lineStart) {
+                    String text = content.substring(start, end);
+                    if ("import".equals(text)) {
+                        importLines.set(line);
+                    } else if (!"package".equals(text) && !text.startsWith("@")) {
+                        // 第一个声明之后不会再有 import
+                        break;
+                    }
+                }
+                lineStart = false;
+            }
+            line += newlines;
+            lexer.advance();
+        }
+        return importLines;
+    }
+
+    private static ParserDefinition parserDefinition(FileType fileType) {
+        if (!(fileType instanceof LanguageFileType)) {
+            return null;
+        }
+        return LanguageParserDefinitions.INSTANCE.forLanguage(((LanguageFileType) fileType).getLanguage());
+    }
+
+    private Lexer createLexer(ParserDefinition definition) {
+        if (definition == null) {
+            return null;
+        }
+        try {
+            return definition.createLexer(project);
+        } catch (RuntimeException e) {
+            LOG.debug("Cannot create lexer for " + definition.getClass().getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 删除行尾空白, 将连续空行折叠为一行, 删除开头的空行
+     */
+    private static String foldWhitespace(String content) {
+        StringBuilder out = new StringBuilder(content.length());
+        int blankLines = 0;
+        boolean started = false;
+        int lineStart = 0;
+        int length = content.length();
+        while (lineStart <= length) {
+            int lineEnd = content.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int trimmedEnd = lineEnd;
+            while (trimmedEnd > lineStart && Character.isWhitespace(content.charAt(trimmedEnd - 1))) {
+                trimmedEnd--;
+            }
+            if (trimmedEnd == lineStart) {
+                blankLines++;
+            } else {
+                if (started && blankLines > 0) {
+                    out.append('\n');
+                }
+                out.append(content, lineStart, trimmedEnd).append('\n');
+                started = true;
+                blankLines = 0;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return out.toString();
+    }
+
+    private static void appendLine(StringBuilder out, String line, int index, int lineCount) {
+        out.append(line);
+        if (index < lineCount - 1) {
+            out.append('\n');
+        }
+    }
+
+    private static int countNewlines(CharSequence text, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isBlank(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cacheKey(FileType fileType, String content, Set<Stage> stages) {
+        StringBuilder key = new StringBuilder(96);
+        key.append(fileType.getName()).append(':');
+        for (Stage stage : stages) {
+            key.append(stage.ordinal());
+        }
+        key.append(':').append(content.length()).append(':');
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            for (byte b : digest) {
+                key.append(String.format(Locale.ROOT, "%02x", b));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            // JDK 必须提供 SHA-256
+            throw new IllegalStateException(e);
+        }
+        return key.toString();
+    }
+}
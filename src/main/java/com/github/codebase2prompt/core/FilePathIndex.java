@@ -0,0 +1,311 @@
+package com.github.codebase2prompt.core;
+
+import com.intellij.psi.codeStyle.MinusculeMatcher;
+import com.intellij.psi.codeStyle.NameUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * 相对路径的过滤索引, 每次输入只查询不重建; 新文件通过 {@link #add} 追加, 编号依次递增
+ * <p>
+ * 支持三种写法:
+ * <ul>
+ *     <li>子串: 忽略大小写, 按路径中的三元组倒排表取候选再逐个确认</li>
+ *     <li>通配符: 含 * 或 ? 时按 glob 匹配, 含 / 时匹配整个相对路径, 否则只匹配文件名; ** 可跨目录</li>
+ *     <li>驼峰: 含大写字母时额外按文件名的驼峰缩写匹配, 如 PGD 匹配 PromptGeneratorDialog</li>
+ * </ul>
+ * 没有可用三元组时退化为扫描, 扫描前先用字符位掩码排除不可能匹配的路径
+ */
+public class FilePathIndex {
+    // 三元组按哈希分桶, 冲突只会增加候选数量, 结果仍由逐个确认保证正确
+    private static final int BUCKET_BITS = 18;
+    private static final int BUCKET_MASK = (1 << BUCKET_BITS) - 1;
+    private static final int[] EMPTY = new int[0];
+
+    private int size;
+    private String[] lowerPaths = new String[0];
+    private String[] names = new String[0];
+    // 路径中出现的字符集合, 每个字符映射到 64 位中的一位
+    private long[] pathMasks = new long[0];
+    // 文件名中驼峰段的首字母集合 (大写字母和数字段开头), 驼峰匹配前先用它排除
+    private long[] humpMasks = new long[0];
+    // 每个桶内的文件序号, 升序且不重复; 数组按需扩容, 有效长度见 postingCounts
+    private final int[][] postings = new int[BUCKET_MASK + 1][];
+    private final int[] postingCounts = new int[BUCKET_MASK + 1];
+    // 每个桶最后记录的文件序号, 同一路径中重复的三元组只记录一次
+    private final int[] lastFile = new int[BUCKET_MASK + 1];
+
+    /**
+     * @param relativePaths 相对路径, 列表中的位置即文件序号
+     */
+    public FilePathIndex(@NotNull List<String> relativePaths) {
+        Arrays.fill(postings, EMPTY);
+        Arrays.fill(lastFile, -1);
+        add(relativePaths);
+    }
+
+    /**
+     * 追加文件, 序号从当前的 {@link #size()} 开始依次递增; 新序号总是最大, 倒排表追加后仍然有序
+     */
+    public void add(@NotNull List<String> relativePaths) {
+        int newSize = size + relativePaths.size();
+        if (newSize > lowerPaths.length) {
+            int capacity = Math.max(newSize, lowerPaths.length + (lowerPaths.length >> 1));
+            lowerPaths = Arrays.copyOf(lowerPaths, capacity);
+            names = Arrays.copyOf(names, capacity);
+            pathMasks = Arrays.copyOf(pathMasks, capacity);
+            humpMasks = Arrays.copyOf(humpMasks, capacity);
+        }
+        for (String path : relativePaths) {
+            int i = size++;
+            String lowerPath = path.toLowerCase(Locale.ROOT);
+            lowerPaths[i] = lowerPath;
+            names[i] = path.substring(path.lastIndexOf('/') + 1);
+            pathMasks[i] = charMask(lowerPath);
+            humpMasks[i] = humpMask(names[i]);
+            for (int j = 0; j + 3 <= lowerPath.length(); j++) {
+                int bucket = bucket(lowerPath, j);
+                if (lastFile[bucket] != i) {
+                    lastFile[bucket] = i;
+                    addPosting(bucket, i);
+                }
+            }
+        }
+    }
+
+    private void addPosting(int bucket, int file) {
+        int[] list = postings[bucket];
+        int count = postingCounts[bucket];
+        if (count == list.length) {
+            list = Arrays.copyOf(list, Math.max(4, count * 2));
+            postings[bucket] = list;
+        }
+        list[count] = file;
+        postingCounts[bucket] = count + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param filter 输入的过滤文本
+     * @return 匹配的文件序号, 过滤文本为空时返回 null 表示不过滤
+     */
+    public @Nullable BitSet match(@Nullable String filter) {
+        String pattern = filter == null ? "" : filter.trim();
+        if (pattern.isEmpty()) {
+            return null;
+        }
+        if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+            return matchGlob(pattern);
+        }
+        BitSet result = matchSubstring(pattern.toLowerCase(Locale.ROOT));
+        if (isCamelHumpPattern(pattern)) {
+            matchCamelHump(pattern, result);
+        }
+        return result;
+    }
+
+    private BitSet matchSubstring(String lowerPattern) {
+        BitSet result = new BitSet(size());
+        long mask = charMask(lowerPattern);
+        int bucket = candidateBucket(lowerPattern);
+        if (bucket >= 0) {
+            int[] candidates = postings[bucket];
+            for (int k = 0, count = postingCounts[bucket]; k < count; k++) {
+                int i = candidates[k];
+                if (lowerPaths[i].contains(lowerPattern)) {
+                    result.set(i);
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if ((pathMasks[i] & mask) == mask && lowerPaths[i].contains(lowerPattern)) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    private BitSet matchGlob(String pattern) {
+        boolean wholePath = pattern.indexOf('/') >= 0;
+        String lowerPattern = pattern.toLowerCase(Locale.ROOT);
+        // 只匹配文件名时 * 与 ** 等价, 用通配符比较代替正则
+        Pattern regex = wholePath ? Pattern.compile(globToRegex(lowerPattern)) : null;
+        // 所有字面量片段都必须出现, 从中取最短的倒排表作为候选
+        long mask = 0;
+        int bucket = -1;
+        for (String part : lowerPattern.split("[*?]")) {
+            mask |= charMask(part);
+            int partBucket = candidateBucket(part);
+            if (partBucket >= 0 && (bucket < 0 || postingCounts[partBucket] < postingCounts[bucket])) {
+                bucket = partBucket;
+            }
+        }
+
+        BitSet result = new BitSet(size());
+        if (bucket >= 0) {
+            int[] candidates = postings[bucket];
+            for (int k = 0, count = postingCounts[bucket]; k < count; k++) {
+                int i = candidates[k];
+                if ((pathMasks[i] & mask) == mask && matchesGlob(regex, lowerPattern, i)) {
+                    result.set(i);
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if ((pathMasks[i] & mask) == mask && matchesGlob(regex, lowerPattern, i)) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean matchesGlob(@Nullable Pattern regex, String lowerPattern, int index) {
+        String path = lowerPaths[index];
+        if (regex != null) {
+            return regex.matcher(path).matches();
+        }
+        return matchesWildcard(lowerPattern, path, path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * 通配符比较, * 匹配任意个字符, ? 匹配一个字符; 失配时回到最近一个 * 多吞一个字符重试
+     */
+    private static boolean matchesWildcard(String pattern, String text, int textStart) {
+        int p = 0;
+        int t = textStart;
+        int starP = -1;
+        int starT = -1;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = p++;
+                starT = t;
+            } else if (starP >= 0) {
+                p = starP + 1;
+                t = ++starT;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private void matchCamelHump(String pattern, BitSet result) {
+        MinusculeMatcher matcher = NameUtil.buildMatcher("*" + pattern, NameUtil.MatchingCaseSensitivity.NONE);
+        // 模式中的每个大写字母都必须是文件名中某一段的首字母
+        long mask = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            if (Character.isUpperCase(pattern.charAt(i))) {
+                mask |= 1L << (Character.toLowerCase(pattern.charAt(i)) & 63);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if ((humpMasks[i] & mask) == mask && !result.get(i) && matcher.matches(names[i])) {
+                result.set(i);
+            }
+        }
+    }
+
+    /**
+     * 取包含该子串所有三元组中倒排表最短的桶作为候选, 子串不足 3 个字符时返回 -1
+     */
+    private int candidateBucket(String lowerLiteral) {
+        if (lowerLiteral.length() < 3) {
+            return -1;
+        }
+        int shortest = -1;
+        for (int j = 0; j + 3 <= lowerLiteral.length(); j++) {
+            int bucket = bucket(lowerLiteral, j);
+            if (shortest < 0 || postingCounts[bucket] < postingCounts[shortest]) {
+                shortest = bucket;
+            }
+        }
+        return shortest;
+    }
+
+    private static long humpMask(String name) {
+        long mask = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char prev = i > 0 ? name.charAt(i - 1) : ' ';
+            boolean start = i == 0 || Character.isUpperCase(c)
+                || Character.isLetterOrDigit(c) && !Character.isLetterOrDigit(prev)
+                || Character.isDigit(c) && !Character.isDigit(prev);
+            if (start) {
+                mask |= 1L << (Character.toLowerCase(c) & 63);
+            }
+        }
+        return mask;
+    }
+
+    // 含大写字母且不像路径时才按驼峰匹配, 纯小写只按子串
+    private static boolean isCamelHumpPattern(String pattern) {
+        boolean upper = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '/' || c == '.' || Character.isWhitespace(c)) {
+                return false;
+            }
+            upper |= Character.isUpperCase(c);
+        }
+        return upper;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() + 16);
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (literalStart < i) {
+                regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return regex.toString();
+    }
+
+    private static int bucket(String s, int start) {
+        int h = s.charAt(start);
+        h = h * 31 + s.charAt(start + 1);
+        h = h * 31 + s.charAt(start + 2);
+        return (h ^ (h >>> BUCKET_BITS)) & BUCKET_MASK;
+    }
+
+    private static long charMask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); i++) {
+            mask |= 1L << (s.charAt(i) & 63);
+        }
+        return mask;
+    }
+}
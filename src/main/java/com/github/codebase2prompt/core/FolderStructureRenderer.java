@@ -0,0 +1,104 @@
+package com.github.codebase2prompt.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 将相对路径列表渲染为 {@code <folder-structure>} 中的目录树
+ * <p>
+ * 两种格式都在一次遍历中写入同一个缓冲区, 前缀使用可回退的 StringBuilder, 每层不再创建新的字符串
+ */
+public final class FolderStructureRenderer {
+
+    public enum Style {
+        // 与原来一致的框线树, 每个路径段一行
+        TREE,
+        // 紧凑格式: 合并只有一个子节点的目录链, 每层缩进两个空格, 目录以 "/" 结尾
+        COMPACT
+    }
+
+    private static final String LAST_BRANCH = "└─ ";
+    private static final String MIDDLE_BRANCH = "├─ ";
+    private static final String LAST_INDENT = "   ";
+    private static final String MIDDLE_INDENT = "│  ";
+    private static final String COMPACT_INDENT = "  ";
+
+    private FolderStructureRenderer() {
+    }
+
+    public static String render(@NotNull Collection<String> relativePaths, @NotNull Style style) {
+        StringBuilder out = new StringBuilder(relativePaths.size() * 24);
+        render(relativePaths, style, out);
+        return out.toString();
+    }
+
+    public static void render(@NotNull Collection<String> relativePaths, @NotNull Style style, @NotNull StringBuilder out) {
+        Node root = buildTree(relativePaths);
+        if (style == Style.COMPACT) {
+            appendCompact(root, 0, out);
+        } else {
+            appendTree(root, new StringBuilder(), out);
+        }
+    }
+
+    private static Node buildTree(Collection<String> relativePaths) {
+        Node root = new Node();
+        for (String path : relativePaths) {
+            Node current = root;
+            int start = 0;
+            while (start <= path.length()) {
+                int slash = path.indexOf('/', start);
+                int end = slash < 0 ? path.length() : slash;
+                String part = path.substring(start, end);
+                current = current.children.computeIfAbsent(part, k -> new Node());
+                start = end + 1;
+            }
+        }
+        return root;
+    }
+
+    private static void appendTree(Node node, StringBuilder prefix, StringBuilder out) {
+        int remaining = node.children.size();
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            boolean isLast = --remaining == 0;
+            out.append(prefix)
+                .append(isLast ? LAST_BRANCH : MIDDLE_BRANCH)
+                .append(entry.getKey())
+                .append('\n');
+
+            int mark = prefix.length();
+            prefix.append(isLast ? LAST_INDENT : MIDDLE_INDENT);
+            appendTree(entry.getValue(), prefix, out);
+            prefix.setLength(mark);
+        }
+    }
+
+    private static void appendCompact(Node node, int depth, StringBuilder out) {
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            for (int i = 0; i < depth; i++) {
+                out.append(COMPACT_INDENT);
+            }
+            out.append(entry.getKey());
+
+            // 合并只有一个子节点的目录链, 如 src/main/java/com/
+            Node child = entry.getValue();
+            while (child.children.size() == 1) {
+                Map.Entry<String, Node> only = child.children.firstEntry();
+                out.append('/').append(only.getKey());
+                child = only.getValue();
+            }
+            if (!child.children.isEmpty()) {
+                out.append('/');
+            }
+            out.append('\n');
+            appendCompact(child, depth + 1, out);
+        }
+    }
+
+    private static class Node {
+        final TreeMap<String, Node> children = new TreeMap<>();
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.codebase2prompt.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * 文本中每一行的起始偏移, 扫描一次后按二分查找把字符偏移换算为行号
+ * <p>
+ * 文本的行分隔符应已统一为 \n
+ */
+public final class LineIndex {
+    private final int[] lineStarts;
+    private final int lineCount;
+    private final int textLength;
+
+    private LineIndex(int[] lineStarts, int lineCount, int textLength) {
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+        this.textLength = textLength;
+    }
+
+    public static LineIndex of(@NotNull CharSequence text) {
+        int[] starts = new int[Math.max(16, text.length() / 32)];
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n' && i + 1 < text.length()) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return new LineIndex(starts, count, text.length());
+    }
+
+    public int getLineCount() {return lineCount;}
+
+    public int getTextLength() {return textLength;}
+
+    /**
+     * 偏移所在的行 (从 0 开始), 超出范围的偏移按首行或末行处理
+     */
+    public int getLineNumber(int offset) {
+        if (offset <= 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    /**
+     * 行的结束偏移 (不含), 包括行尾的 \n
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < lineCount ? lineStarts[line + 1] : textLength;
+    }
+}
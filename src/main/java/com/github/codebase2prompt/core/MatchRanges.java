@@ -0,0 +1,73 @@
+package com.github.codebase2prompt.core;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 搜索结果在每个文件中的匹配位置 (字符偏移), 供片段模式只输出匹配的行
+ * <p>
+ * 搜索线程可并发写入; 每个范围压缩为一个 long (高 32 位起点, 低 32 位终点), 排序后即按起点有序
+ */
+public class MatchRanges {
+    private final Map<VirtualFile, RangeList> ranges = new ConcurrentHashMap<>();
+
+    public void add(@NotNull VirtualFile file, int startOffset, int endOffset) {
+        ranges.computeIfAbsent(file, f -> new RangeList()).add(startOffset, Math.max(startOffset, endOffset));
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * 文件中已记录的匹配数, 只增不减, 可用于判断按旧匹配渲染的结果是否过期
+     */
+    public int count(@NotNull VirtualFile file) {
+        RangeList list = ranges.get(file);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * 按起点排序的匹配范围, 用 {@link #getStart} / {@link #getEnd} 取值; 没有匹配时返回 null
+     */
+    @Nullable
+    public long[] get(@NotNull VirtualFile file) {
+        RangeList list = ranges.get(file);
+        return list == null ? null : list.sortedCopy();
+    }
+
+    public static int getStart(long range) {
+        return (int) (range >>> 32);
+    }
+
+    public static int getEnd(long range) {
+        return (int) range;
+    }
+
+    private static class RangeList {
+        private long[] values = new long[4];
+        private int size;
+
+        synchronized void add(int start, int end) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = ((long) start << 32) | (end & 0xFFFFFFFFL);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long[] sortedCopy() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
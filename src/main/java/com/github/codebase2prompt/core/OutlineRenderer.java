@@ -0,0 +1,92 @@
+package com.github.codebase2prompt.core;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 大纲模式: 只保留最外两层缩进的行 (类型、成员声明), 省略方法体、注释和 import
+ * <p>
+ * 按缩进判断层级, 与语言无关; 缩进单位取文件中最小的非零缩进, 两空格和四空格缩进的文件都适用
+ */
+public final class OutlineRenderer {
+    // 制表符按 4 列计算
+    private static final int TAB_WIDTH = 4;
+
+    private OutlineRenderer() {
+    }
+
+    /**
+     * @param content 文件内容, 行分隔符已统一为 \n
+     * @param from 内容起点 (含)
+     * @param to 内容终点 (不含)
+     */
+    public static void render(@NotNull CharSequence content, int from, int to, @NotNull StringBuilder out) {
+        int unit = Integer.MAX_VALUE;
+        // 1. 找出缩进单位, Javadoc 续行 " * " 等注释不参与
+        for (int lineStart = from; lineStart < to; ) {
+            int lineEnd = nextLine(content, lineStart, to);
+            int indent = indentWidth(content, lineStart, to);
+            if (indent > 0 && indent < unit && isDeclaration(content, lineStart, lineEnd)) {
+                unit = indent;
+            }
+            lineStart = lineEnd;
+        }
+
+        // 2. 输出缩进不超过一个单位的声明行
+        for (int lineStart = from; lineStart < to; ) {
+            int lineEnd = nextLine(content, lineStart, to);
+            if (indentWidth(content, lineStart, to) <= (unit == Integer.MAX_VALUE ? 0 : unit)
+                && isDeclaration(content, lineStart, lineEnd)) {
+                out.append(content, lineStart, lineEnd);
+                if (content.charAt(lineEnd - 1) != '\n') {
+                    out.append('\n');
+                }
+            }
+            lineStart = lineEnd;
+        }
+    }
+
+    private static int nextLine(CharSequence content, int lineStart, int to) {
+        for (int i = lineStart; i < to; i++) {
+            if (content.charAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return to;
+    }
+
+    private static int indentWidth(CharSequence content, int lineStart, int to) {
+        int width = 0;
+        for (int i = lineStart; i < to; i++) {
+            char c = content.charAt(i);
+            if (c == ' ') {
+                width++;
+            } else if (c == '\t') {
+                width += TAB_WIDTH;
+            } else {
+                break;
+            }
+        }
+        return width;
+    }
+
+    // 跳过空行、注释、import 和只有括号的行
+    private static boolean isDeclaration(CharSequence content, int lineStart, int lineEnd) {
+        int i = lineStart;
+        while (i < lineEnd && Character.isWhitespace(content.charAt(i))) {
+            i++;
+        }
+        if (i == lineEnd) {
+            return false;
+        }
+        String line = content.subSequence(i, lineEnd).toString().trim();
+        if (line.startsWith("//") || line.startsWith("/*") || line.startsWith("*") || line.startsWith("import ")) {
+            return false;
+        }
+        for (int k = 0; k < line.length(); k++) {
+            if ("{}()[];,".indexOf(line.charAt(k)) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.codebase2prompt.core;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * 在有界线程池中并行读取并解码文件, 按原始顺序取回结果
+ * <p>
+ * 只预取固定窗口内的文件, 调用方提前结束 (如超出大小限制) 时, 窗口外的文件不会被读取,
+ * 窗口内尚未完成的读取会被取消
+ */
+public class ParallelFileLoader {
+    private static final int PARALLELISM = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    private static final int PREFETCH_WINDOW = PARALLELISM * 4;
+    // 等待单个结果时检查取消状态的间隔
+    private static final long POLL_INTERVAL_MS = 20;
+
+    private final ExecutorService executor =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("Codebase2Prompt File Loader", PARALLELISM);
+
+    /**
+     * 开始一次按顺序取回的并行加载
+     *
+     * @param files 需要加载的文件, 结果按此顺序返回
+     * @param loader 在工作线程中执行的读取和解码逻辑
+     * @param indicator 调用方的进度指示器, 取消时停止等待
+     */
+    public <T> Session<T> start(@NotNull List<VirtualFile> files,
+                                @NotNull Function<VirtualFile, T> loader,
+                                @NotNull ProgressIndicator indicator) {
+        return new Session<>(files, loader, indicator);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public class Session<T> implements AutoCloseable {
+        private final List<VirtualFile> files;
+        private final Function<VirtualFile, T> loader;
+        private final ProgressIndicator indicator;
+        @SuppressWarnings("unchecked")
+        private final Future<T>[] futures;
+        private int nextToSubmit = 0;
+        private int nextToTake = 0;
+
+        @SuppressWarnings("unchecked")
+        private Session(List<VirtualFile> files, Function<VirtualFile, T> loader, ProgressIndicator indicator) {
+            this.files = files;
+            this.loader = loader;
+            this.indicator = indicator;
+            this.futures = new Future[files.size()];
+            fillWindow();
+        }
+
+        public boolean hasNext() {
+            return nextToTake < files.size();
+        }
+
+        /**
+         * 取回下一个文件的结果, 必要时阻塞等待读取完成
+         */
+        public T next() {
+            int index = nextToTake++;
+            Future<T> future = futures[index];
+            futures[index] = null;
+            fillWindow();
+            while (true) {
+                indicator.checkCanceled();
+                try {
+                    return future.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // 继续等待, 期间检查取消状态
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProcessCanceledException(e);
+                } catch (CancellationException e) {
+                    throw new ProcessCanceledException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+
+        private void fillWindow() {
+            while (nextToSubmit < files.size() && nextToSubmit - nextToTake < PREFETCH_WINDOW) {
+                VirtualFile file = files.get(nextToSubmit);
+                futures[nextToSubmit] = executor.submit(() -> loader.apply(file));
+                nextToSubmit++;
+            }
+        }
+
+        /**
+         * 取消所有尚未取回的读取
+         */
+        @Override
+        public void close() {
+            for (int i = nextToTake; i < nextToSubmit; i++) {
+                if (futures[i] != null) {
+                    // 不中断正在执行的读取, 中断会关闭 VFS 内部共享的 FileChannel
+                    futures[i].cancel(false);
+                    futures[i] = null;
+                }
+            }
+            nextToTake = nextToSubmit = files.size();
+        }
+    }
+}
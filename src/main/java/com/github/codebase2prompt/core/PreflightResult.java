@@ -0,0 +1,33 @@
+package com.github.codebase2prompt.core;
+
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.List;
+
+/**
+ * 生成前的预检结果, 只由文件元数据和缓存统计得出, 不涉及文件内容读取
+ */
+public class PreflightResult {
+    private final int includedCount;
+    private final long predictedBytes;
+    private final int predictedTokens;
+    private final List<VirtualFile> overLimitFiles;
+
+    public PreflightResult(int includedCount, long predictedBytes, int predictedTokens, List<VirtualFile> overLimitFiles) {
+        this.includedCount = includedCount;
+        this.predictedBytes = predictedBytes;
+        this.predictedTokens = predictedTokens;
+        this.overLimitFiles = overLimitFiles;
+    }
+
+    // 未超出大小限制的文件数量, 即选择列表中前 includedCount 个文件
+    public int getIncludedCount() {return includedCount;}
+
+    public long getPredictedBytes() {return predictedBytes;}
+
+    public int getPredictedTokens() {return predictedTokens;}
+
+    public List<VirtualFile> getOverLimitFiles() {return overLimitFiles;}
+
+    public int getOverLimitCount() {return overLimitFiles.size();}
+}
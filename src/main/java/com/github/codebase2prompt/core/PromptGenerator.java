@@ -1,157 +1,685 @@
 package com.github.codebase2prompt.core;
 
+import com.github.codebase2prompt.storage.PromptSettings;
 import com.github.codebase2prompt.util.PerformanceLogger;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PromptGenerator {
+    private static final Logger LOG = Logger.getInstance(PromptGenerator.class);
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final String DOCUMENT_END = "</document>\n\n";
+    // 预算模式下的最大打包轮数, 每轮用读取到的精确 Tokens 修正估算值
+    private static final int MAX_PACKING_ROUNDS = 3;
+    // 未读取文件按字节数估算 Tokens
+    private static final int BYTES_PER_TOKEN = 4;
+    private static final String TRUNCATION_SUFFIX = "... (truncated to fit token budget)\n" + DOCUMENT_END;
+    private static final int TRUNCATION_MARKER_TOKENS = 16;
+    // 未读取文件的大纲按完整内容的 1/8 估算
+    private static final int OUTLINE_TOKEN_RATIO = 8;
+    // <omitted-files> 最多列出的路径数, 其余只给出数量
+    private static final int MAX_LISTED_OMITTED_FILES = 100;
+    // 片段模式下估算未读取文件的大小时, 每行按该字节数计算
+    private static final int ESTIMATED_LINE_LENGTH = 80;
     private final Project project;
+    // 已渲染的 <document> 片段缓存, 按 VirtualFile + 修改戳 (modificationStamp) 判断是否失效
+    // 生成在后台线程执行, 被取消的旧任务可能与新任务并发访问缓存
+    private final Map<VirtualFile, DocumentFragment> fragmentCache = new ConcurrentHashMap<>();
+    private final ParallelFileLoader fileLoader = new ParallelFileLoader();
+    private final ContentMinifier minifier;
+    private volatile int tokenBudget = 0;
+    private volatile long sizeLimit = PromptSettings.DEFAULT_SIZE_LIMIT;
+    private volatile FolderStructureRenderer.Style folderStructureStyle = FolderStructureRenderer.Style.TREE;
+    // 片段模式的匹配位置, 为 null 时输出完整文件
+    private volatile MatchRanges matchRanges;
+    private volatile int snippetContextLines = PromptSettings.DEFAULT_SNIPPET_CONTEXT_LINES;
 
     public PromptGenerator(Project project) {
         this.project = project;
+        this.minifier = new ContentMinifier(project);
     }
 
-    public String generatePrompt(@NotNull List<PsiFile> selectedFiles) {
+    public String generatePrompt(@NotNull List<VirtualFile> selectedFiles) {
+        return generatePrompt(selectedFiles, new EmptyProgressIndicator());
+    }
+
+    /**
+     * 生成 Prompt, 可在后台线程 (ReadAction 内) 调用
+     *
+     * @param selectedFiles 选中的文件
+     * @param indicator 进度指示器, 每处理一个文件检查一次是否已取消
+     * @return 生成的 Prompt 内容, 行分隔符已统一为 \n
+     */
+    public String generatePrompt(@NotNull List<VirtualFile> selectedFiles, @NotNull ProgressIndicator indicator) {
         if (selectedFiles.isEmpty()) {
             return "";
         }
 
         StringBuilder prompt = new StringBuilder();
+        try {
+            writePrompt(selectedFiles, prompt, indicator, true);
+        } catch (IOException e) {
+            // StringBuilder 不会抛出 IOException
+            throw new IllegalStateException(e);
+        }
+        return prompt.toString();
+    }
+
+    /**
+     * 以流的方式输出 Prompt, 边读取文件边写入, 不在内存中保留完整内容
+     *
+     * @param selectedFiles 选中的文件
+     * @param out 输出目标, 如 Writer
+     * @param indicator 进度指示器
+     * @throws IOException 写入输出目标失败
+     */
+    public void writePrompt(@NotNull List<VirtualFile> selectedFiles, @NotNull Appendable out,
+                            @NotNull ProgressIndicator indicator) throws IOException {
+        writePrompt(selectedFiles, out, indicator, false);
+    }
+
+    /**
+     * 将 Prompt 直接写入文件, 使用 FileChannel 与缓冲 Writer, 内存占用与 Prompt 大小无关
+     *
+     * @param selectedFiles 选中的文件
+     * @param target 目标文件, 已存在时覆盖
+     * @param indicator 进度指示器
+     * @throws IOException 写入文件失败
+     */
+    public void writePrompt(@NotNull List<VirtualFile> selectedFiles, @NotNull Path target,
+                            @NotNull ProgressIndicator indicator) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), WRITE_BUFFER_SIZE))) {
+            writePrompt(selectedFiles, writer, indicator);
+        }
+    }
+
+    private void writePrompt(@NotNull List<VirtualFile> selectedFiles, @NotNull Appendable out,
+                             @NotNull ProgressIndicator indicator, boolean cacheFragments) throws IOException {
+        if (selectedFiles.isEmpty()) {
+            return;
+        }
+
         long t0 = System.currentTimeMillis();
+        indicator.setIndeterminate(false);
         // 1. 生成文件夹结构
-        prompt.append(generateFolderStructure(selectedFiles));
-        prompt.append("\n\n");
+        String folderStructure = generateFolderStructure(selectedFiles);
+        out.append(folderStructure);
+        out.append("\n\n");
         PerformanceLogger.logTime("generateFolderStructure", t0);
-        
-        // 2. 生成文件内容
+
+        // 2. 生成文件内容, 预检阶段已排除超出大小限制的文件, 这些文件不会被读取
         t0 = System.currentTimeMillis();
-        prompt.append(generateFileContents(selectedFiles));
+        PreflightResult preflight = preflight(selectedFiles);
+        List<VirtualFile> includedFiles = selectedFiles.subList(0, preflight.getIncludedCount());
+        if (cacheFragments && tokenBudget > 0) {
+            // 直接统计已输出的文件夹结构, 不再重新生成
+            int budget = tokenBudget - TokenCounter.estimateTokens(folderStructure) - 1;
+            if (preflight.getOverLimitCount() > 0) {
+                budget -= omittedFilesTokens(preflight.getOverLimitFiles(), "size limit");
+            }
+            writeFileContentsWithinBudget(includedFiles, out, indicator, budget);
+        } else {
+            writeFileContents(includedFiles, out, indicator, cacheFragments);
+        }
+        if (preflight.getOverLimitCount() > 0) {
+            writeOmittedFiles(preflight.getOverLimitFiles(), "size limit", out);
+        }
         PerformanceLogger.logTime("generateFileContents", t0);
+    }
 
-        return prompt.toString();
+    /**
+     * 只根据 VFS 元数据 ({@link VirtualFile#getLength()}) 和已缓存的片段统计预测大小和 Tokens,
+     * 不读取文件内容, 可在 EDT 上调用
+     * <p>
+     * 按选择顺序累计大小, 从第一个使累计大小超出限制的文件开始, 其后的文件都视为超出限制
+     *
+     * @param selectedFiles 选中的文件
+     * @return 预检结果
+     */
+    public PreflightResult preflight(@NotNull List<VirtualFile> selectedFiles) {
+        long limit = sizeLimit;
+        long totalBytes = 0;
+        long totalTokens = 0;
+        int includedCount = selectedFiles.size();
+        for (int i = 0; i < selectedFiles.size(); i++) {
+            VirtualFile vFile = selectedFiles.get(i);
+            DocumentFragment fragment = getCachedFragment(vFile);
+            long bytes = fragment != null ? fragment.contentLength : predictedLength(vFile);
+            if (totalBytes + bytes > limit) {
+                includedCount = i;
+                break;
+            }
+            totalBytes += bytes;
+            totalTokens += fragment != null ? fragment.tokenCount : estimateTokens(vFile);
+        }
+
+        List<VirtualFile> overLimit = new ArrayList<>(selectedFiles.size() - includedCount);
+        for (int i = includedCount; i < selectedFiles.size(); i++) {
+            overLimit.add(selectedFiles.get(i));
+        }
+        return new PreflightResult(includedCount, totalBytes, (int) Math.min(Integer.MAX_VALUE, totalTokens), overLimit);
     }
 
-    private String generateFolderStructure(@NotNull List<PsiFile> files) {
-        StringBuilder structure = new StringBuilder("<folder-structure>\n");
+    /**
+     * 设置内容总大小限制 (字节)
+     */
+    public void setSizeLimit(long sizeLimit) {
+        this.sizeLimit = sizeLimit > 0 ? sizeLimit : Long.MAX_VALUE;
+    }
+
+    /**
+     * 列出被省略的文件, 超过 {@link #MAX_LISTED_OMITTED_FILES} 个时其余只输出数量
+     */
+    private void writeOmittedFiles(List<VirtualFile> files, String reason, Appendable out) throws IOException {
         String projectPath = project.getBasePath();
-        
-        // 构建目录树
-        TreeNode root = new TreeNode("");
-        for (PsiFile file : files) {
-            String relativePath = getRelativePath(file.getVirtualFile(), projectPath);
-            String[] parts = relativePath.split("/");
-            
-            TreeNode current = root;
-            StringBuilder currentPath = new StringBuilder();
-            for (int i = 0; i < parts.length; i++) {
-                if (currentPath.length() > 0) {
-                    currentPath.append("/");
+        out.append("<omitted-files reason=\"").append(reason).append("\">\n");
+        int listed = Math.min(files.size(), MAX_LISTED_OMITTED_FILES);
+        for (int i = 0; i < listed; i++) {
+            out.append(getRelativePath(files.get(i), projectPath)).append("\n");
+        }
+        if (files.size() > listed) {
+            out.append("... and ").append(String.valueOf(files.size() - listed)).append(" more files\n");
+        }
+        out.append("</omitted-files>\n");
+    }
+
+    /**
+     * {@code <omitted-files>} 占用的 Tokens, 预算模式下从预算中预留
+     */
+    private int omittedFilesTokens(List<VirtualFile> files, String reason) {
+        if (files.isEmpty()) {
+            return 0;
+        }
+        StringBuilder listing = new StringBuilder();
+        try {
+            writeOmittedFiles(files, reason, listing);
+        } catch (IOException e) {
+            // StringBuilder 不会抛出 IOException
+            throw new IllegalStateException(e);
+        }
+        return TokenCounter.estimateTokens(listing.toString());
+    }
+
+    /**
+     * 设置 Token 预算, 大于 0 时生成的 Prompt 会按预算挑选、截断或省略文件
+     */
+    public void setTokenBudget(int tokenBudget) {
+        this.tokenBudget = Math.max(0, tokenBudget);
+    }
+
+    /**
+     * 按 Token 预算输出文件内容
+     * <p>
+     * 片段模式下有匹配的文件优先, 其余文件 Tokens 少的优先, 使尽量多的文件完整放入; 放不下的文件依次改为大纲、
+     * 截断或省略, 输出仍按选择顺序. 省略列表占用的 Tokens 先从预算中预留
+     * <p>
+     * 先用缓存的精确 Tokens 或按文件大小估算的 Tokens 打包, 只读取被选中的文件;
+     * 读取后得到精确值再重新打包, 直到结果稳定. 被省略的文件不会读取
+     */
+    private void writeFileContentsWithinBudget(@NotNull List<VirtualFile> files, @NotNull Appendable out,
+                                               @NotNull ProgressIndicator indicator, int budget) throws IOException {
+        String projectPath = project.getBasePath();
+        int fileCount = files.size();
+        VirtualFile[] virtualFiles = files.toArray(VirtualFile.EMPTY_ARRAY);
+
+        TokenBudgetPacker.Plan plan = null;
+        DocumentFragment[] fragments = new DocumentFragment[fileCount];
+        for (int round = 0; ; round++) {
+            indicator.checkCanceled();
+            int[] tokens = new int[fileCount];
+            int[] outlineTokens = new int[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                DocumentFragment fragment = getCachedFragment(virtualFiles[i]);
+                fragments[i] = fragment;
+                if (fragment != null) {
+                    tokens[i] = fragment.tokenCount;
+                    outlineTokens[i] = fragment.outlineTokens();
+                } else {
+                    tokens[i] = estimateTokens(virtualFiles[i]);
+                    // 片段本身已经很短, 不再生成大纲
+                    outlineTokens[i] = snippetKey(virtualFiles[i]) >= 0 ? tokens[i] : tokens[i] / OUTLINE_TOKEN_RATIO + 1;
                 }
-                currentPath.append(parts[i]);
-                
-                TreeNode child = current.children.get(parts[i]);
-                if (child == null) {
-                    child = new TreeNode(currentPath.toString());
-                    current.children.put(parts[i], child);
+            }
+            int[] order = priorityOrder(virtualFiles, tokens);
+            // 预留省略列表的 Tokens; 预留越多省略的文件越多, 列表长度有上限, 预留值单调增加后收敛
+            int reserved = 0;
+            while (true) {
+                plan = TokenBudgetPacker.pack(tokens, outlineTokens, order, budget - reserved);
+                int listingTokens = omittedFilesTokens(omittedFiles(plan, virtualFiles), "token budget");
+                if (listingTokens <= reserved) {
+                    break;
+                }
+                reserved = listingTokens;
+            }
+
+            List<VirtualFile> toLoad = new ArrayList<>();
+            for (int i = 0; i < fileCount; i++) {
+                if (fragments[i] == null && plan.getDecision(i) != TokenBudgetPacker.Decision.OMITTED) {
+                    toLoad.add(virtualFiles[i]);
+                }
+            }
+            // 最后一轮只打包不读取, 仍未读取的文件按省略处理, 保证不超出预算
+            if (toLoad.isEmpty() || round == MAX_PACKING_ROUNDS) {
+                break;
+            }
+            try (ParallelFileLoader.Session<DocumentFragment> session =
+                     fileLoader.start(toLoad, f -> renderFragment(f, getRelativePath(f, projectPath)), indicator)) {
+                int loaded = 0;
+                while (session.hasNext()) {
+                    indicator.setFraction((double) loaded++ / toLoad.size());
+                    DocumentFragment fragment = session.next();
+                    if (fragment.cacheable) {
+                        fragmentCache.put(fragment.file, fragment);
+                    }
+                }
+            }
+        }
+
+        List<VirtualFile> omitted = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            indicator.checkCanceled();
+            DocumentFragment fragment = fragments[i] != null ? fragments[i] : getCachedFragment(virtualFiles[i]);
+            TokenBudgetPacker.Decision decision = plan.getDecision(i);
+            if (decision == TokenBudgetPacker.Decision.OMITTED || fragment == null) {
+                omitted.add(virtualFiles[i]);
+            } else if (decision == TokenBudgetPacker.Decision.FULL) {
+                out.append(fragment.text);
+            } else if (decision == TokenBudgetPacker.Decision.OUTLINED) {
+                out.append(fragment.outline());
+            } else {
+                appendTruncated(fragment, plan.getAllowedTokens(i), out);
+            }
+        }
+        if (!omitted.isEmpty()) {
+            writeOmittedFiles(omitted, "token budget", out);
+        }
+        LOG.debug(String.format("Packed %d files into %d tokens: %d full, %d truncated, %d outlined, %d omitted",
+            fileCount, plan.getUsedTokens(), plan.count(TokenBudgetPacker.Decision.FULL),
+            plan.count(TokenBudgetPacker.Decision.TRUNCATED), plan.count(TokenBudgetPacker.Decision.OUTLINED),
+            omitted.size()));
+    }
+
+    /**
+     * 打包优先级: 片段模式下有匹配的文件在前, 其余按 Tokens 从少到多, 相同时保持选择顺序
+     */
+    private int[] priorityOrder(VirtualFile[] files, int[] tokens) {
+        MatchRanges ranges = matchRanges;
+        Integer[] order = new Integer[files.length];
+        boolean[] matched = new boolean[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            matched[i] = ranges != null && ranges.count(files[i]) > 0;
+        }
+        Arrays.sort(order, Comparator.<Integer, Boolean>comparing(i -> !matched[i]).thenComparingInt(i -> tokens[i]));
+        int[] result = new int[files.length];
+        for (int i = 0; i < files.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    private static List<VirtualFile> omittedFiles(TokenBudgetPacker.Plan plan, VirtualFile[] files) {
+        List<VirtualFile> omitted = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            if (plan.getDecision(i) == TokenBudgetPacker.Decision.OMITTED) {
+                omitted.add(files[i]);
+            }
+        }
+        return omitted;
+    }
+
+    /**
+     * 文件完整输出时在 Prompt 中占用的 Tokens, 未缓存时读取并渲染, 片段放入缓存, 之后生成时直接复用.
+     * 可在后台线程调用, 用于选择之前预先统计
+     *
+     * @return 二进制文件或超过大小限制的文件不读取, 返回 -1
+     */
+    public int countTokens(@NotNull VirtualFile file) {
+        DocumentFragment fragment = getCachedFragment(file);
+        if (fragment == null) {
+            if (file.getFileType().isBinary() || file.getLength() > sizeLimit) {
+                return -1;
+            }
+            fragment = renderFragment(file, getRelativePath(file, project.getBasePath()));
+            if (fragment.cacheable) {
+                fragmentCache.put(file, fragment);
+            }
+        }
+        return fragment.tokenCount;
+    }
+
+    /**
+     * 文件完整输出时在 Prompt 中占用的 Tokens (含 {@code <document>} 标签), 取自片段缓存, 不读取文件
+     *
+     * @return 尚未渲染或缓存已失效时返回 -1
+     */
+    public int getCachedTokenCount(@NotNull VirtualFile file) {
+        DocumentFragment fragment = getCachedFragment(file);
+        return fragment != null ? fragment.tokenCount : -1;
+    }
+
+    private DocumentFragment getCachedFragment(VirtualFile file) {
+        DocumentFragment fragment = fragmentCache.get(file);
+        return fragment != null && fragment.modificationStamp == file.getModificationStamp()
+            && fragment.minifyMask == minifier.getStagesMask() && fragment.snippetKey == snippetKey(file) ? fragment : null;
+    }
+
+    private int estimateTokens(VirtualFile file) {
+        return (int) Math.min(Integer.MAX_VALUE, predictedLength(file) / BYTES_PER_TOKEN + 1);
+    }
+
+    /**
+     * 未读取文件的预计内容大小; 片段模式下按匹配数和上下文行数估算, 不超过文件大小
+     */
+    private long predictedLength(VirtualFile file) {
+        MatchRanges ranges = matchRanges;
+        int count = ranges == null ? 0 : ranges.count(file);
+        if (count == 0) {
+            return file.getLength();
+        }
+        return Math.min(file.getLength(), (long) count * (2L * snippetContextLines + 1) * ESTIMATED_LINE_LENGTH);
+    }
+
+    /**
+     * 设置片段模式: 有匹配位置的文件只输出匹配行及前后 contextLines 行, 没有匹配的文件仍输出完整内容
+     *
+     * @param ranges 匹配位置, 为 null 时关闭片段模式
+     */
+    public void setSnippetMode(@Nullable MatchRanges ranges, int contextLines) {
+        this.snippetContextLines = Math.max(0, contextLines);
+        this.matchRanges = ranges;
+    }
+
+    /**
+     * 文件当前的片段配置, 用于判断缓存的片段是否过期: 输出完整文件时为 -1, 否则由上下文行数和匹配数组成
+     */
+    private long snippetKey(VirtualFile file) {
+        MatchRanges ranges = matchRanges;
+        int count = ranges == null ? 0 : ranges.count(file);
+        return count == 0 ? -1 : ((long) snippetContextLines << 32) | count;
+    }
+
+    /**
+     * 按比例截取片段内容, 在行边界处截断并标注
+     */
+    private static void appendTruncated(DocumentFragment fragment, int allowedTokens, Appendable out) throws IOException {
+        String text = fragment.text;
+        int contentStart = text.indexOf('\n') + 1;
+        int contentEnd = text.length() - DOCUMENT_END.length();
+        // 1. 按平均每 Token 字符数估算截断位置, 只作为上界
+        double charsPerToken = (double) (contentEnd - contentStart) / Math.max(1, fragment.tokenCount);
+        int estimate = contentStart + (int) ((allowedTokens - TRUNCATION_MARKER_TOKENS) * charsPerToken);
+        estimate = Math.max(contentStart, Math.min(estimate, contentEnd));
+
+        // 2. 收集上界之前的行尾, 只在整行处截断
+        List<Integer> lineEnds = new ArrayList<>();
+        lineEnds.add(contentStart);
+        for (int i = text.indexOf('\n', contentStart); i >= 0 && i < estimate; i = text.indexOf('\n', i + 1)) {
+            lineEnds.add(i + 1);
+        }
+
+        // 3. 重新统计截断后的 Tokens, 超出时二分查找能放下的最长前缀
+        int cut = lineEnds.get(lineEnds.size() - 1);
+        if (!fitsTruncated(text, cut, allowedTokens)) {
+            int low = 0;
+            int high = lineEnds.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (fitsTruncated(text, lineEnds.get(mid), allowedTokens)) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
                 }
-                current = child;
             }
+            cut = lineEnds.get(low);
+        }
+        out.append(text, 0, cut);
+        out.append(TRUNCATION_SUFFIX);
+    }
+
+    // 统计实际输出的完整文本, 截断标记与前缀相邻时 BPE 可能合并, 不能分开累加
+    private static boolean fitsTruncated(String text, int cut, int allowedTokens) {
+        return TokenCounter.estimateTokens(text.substring(0, cut) + TRUNCATION_SUFFIX) <= allowedTokens;
+    }
+
+    private String generateFolderStructure(@NotNull List<VirtualFile> files) {
+        String projectPath = project.getBasePath();
+        List<String> relativePaths = new ArrayList<>(files.size());
+        for (VirtualFile file : files) {
+            relativePaths.add(getRelativePath(file, projectPath));
         }
 
         // 生成树形结构字符串
-        structure.append(generateTreeString(root, "", "└─ ", "│  ", "├─ "));
+        StringBuilder structure = new StringBuilder("<folder-structure>\n");
+        FolderStructureRenderer.render(relativePaths, folderStructureStyle, structure);
         structure.append("</folder-structure>");
-        
         return structure.toString();
     }
 
-    private String generateFileContents(@NotNull List<PsiFile> files) {
-        StringBuilder contents = new StringBuilder();
+    /**
+     * 设置内容精简阶段, 为空时输出原始内容. 已缓存的片段在下次生成时按新配置重新渲染
+     */
+    public void setMinifyStages(@NotNull Set<ContentMinifier.Stage> stages) {
+        minifier.setStages(stages);
+    }
+
+    /**
+     * 设置目录结构的输出格式
+     */
+    public void setFolderStructureStyle(@NotNull FolderStructureRenderer.Style style) {
+        this.folderStructureStyle = style;
+    }
+
+    /**
+     * 输出所有文件的 {@code <document>} 片段
+     *
+     * @param cacheFragments true 时未缓存的文件由并行加载器读取并放入缓存;
+     *                       流式导出时为 false, 未缓存的文件按顺序直接从磁盘流式写出
+     */
+    private void writeFileContents(@NotNull List<VirtualFile> files, @NotNull Appendable out,
+                                   @NotNull ProgressIndicator indicator, boolean cacheFragments) throws IOException {
         String projectPath = project.getBasePath();
         
         long totalSize = 0;
-        final long SIZE_LIMIT = 5 * 1024 * 1024; // 5MB limit
-        List<String> processedFiles = new ArrayList<>();
+        long limit = sizeLimit;
+        int processedCount = 0;
+        int cacheHits = 0;
         
-        for (PsiFile file : files) {
-            String relativePath = getRelativePath(file.getVirtualFile(), projectPath);
-            
-            try {
-                byte[] fileContent = file.getVirtualFile().contentsToByteArray();
-                totalSize += fileContent.length;
-                
-                if (totalSize > SIZE_LIMIT) {
-                    // 显示警告对话框
-                    ApplicationManager.getApplication().invokeLater(() -> {
-                        Messages.showWarningDialog(
-                            project,
-                            String.format("Total content size exceeds 5MB limit.\nProcessed %d of %d files.\nSkipped files starting from: %s",
-                                processedFiles.size(),
-                                files.size(),
-                                relativePath),
-                            "Content Size Warning"
-                        );
-                    });
+        // 先找出缓存失效的文件, 交给并行加载器按原始顺序读取
+        int fileCount = files.size();
+        VirtualFile[] virtualFiles = new VirtualFile[fileCount];
+        DocumentFragment[] cached = new DocumentFragment[fileCount];
+        List<VirtualFile> toLoad = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            VirtualFile vFile = files.get(i);
+            virtualFiles[i] = vFile;
+            DocumentFragment fragment = getCachedFragment(vFile);
+            if (fragment != null) {
+                cached[i] = fragment;
+                cacheHits++;
+            } else if (cacheFragments) {
+                toLoad.add(vFile);
+            }
+        }
+
+        try (ParallelFileLoader.Session<DocumentFragment> session = toLoad.isEmpty() ? null
+            : fileLoader.start(toLoad, f -> renderFragment(f, getRelativePath(f, projectPath)), indicator)) {
+            for (int i = 0; i < fileCount; i++) {
+                indicator.checkCanceled();
+                indicator.setFraction((double) processedCount / fileCount);
+                VirtualFile vFile = virtualFiles[i];
+                String relativePath = getRelativePath(vFile, projectPath);
+
+                DocumentFragment fragment = cached[i];
+                if (fragment == null && session != null) {
+                    fragment = session.next();
+                    if (fragment.cacheable) {
+                        fragmentCache.put(vFile, fragment);
+                    } else {
+                        fragmentCache.remove(vFile);
+                    }
+                }
+
+                // 文件在预检之后变大时仍然兜底, 退出 try 时会取消剩余的读取
+                totalSize += fragment != null ? fragment.contentLength : vFile.getLength();
+                if (totalSize > limit) {
+                    LOG.info(String.format("Content size exceeds limit after preflight, skipped files starting from: %s", relativePath));
                     break;
                 }
-                
-                contents.append("<document path=\"").append(relativePath).append("\">\n");
-                String content = new String(fileContent, StandardCharsets.UTF_8);
-                contents.append(content);
-                if (!content.endsWith("\n")) {
-                    contents.append("\n");
+
+                if (fragment != null) {
+                    out.append(fragment.text);
+                } else if (minifier.isEnabled() || snippetKey(vFile) >= 0) {
+                    // 精简和片段模式需要完整内容, 无法边读边写, 逐个文件渲染后写出
+                    out.append(renderFragment(vFile, relativePath).text);
+                } else {
+                    streamDocument(vFile, relativePath, out);
                 }
-                contents.append("</document>\n\n");
-                
-                processedFiles.add(relativePath);
-                
-            } catch (IOException e) {
-                contents.append("<document path=\"").append(relativePath).append("\">\n");
-                contents.append("// Error reading file content: ").append(e.getMessage()).append("\n");
-                contents.append("</document>\n\n");
+                processedCount++;
             }
         }
-        
-        return contents.toString();
+        LOG.debug(String.format("generateFileContents: %d files, %d fragments from cache", processedCount, cacheHits));
     }
 
-    private String generateTreeString(TreeNode node, String prefix, String lastPrefix, 
-                                    String indent, String middlePrefix) {
-        StringBuilder result = new StringBuilder();
-        
-        List<Map.Entry<String, TreeNode>> sortedChildren = new ArrayList<>(node.children.entrySet());
-        sortedChildren.sort(Map.Entry.comparingByKey());
-
-        for (int i = 0; i < sortedChildren.size(); i++) {
-            Map.Entry<String, TreeNode> entry = sortedChildren.get(i);
-            boolean isLast = (i == sortedChildren.size() - 1);
-            
-            String nextPrefix = prefix + (isLast ? "   " : indent);
-            String childPrefix = isLast ? lastPrefix : middlePrefix;
-            
-            result.append(prefix)
-                  .append(childPrefix)
-                  .append(entry.getKey())
-                  .append("\n");
-            
-            result.append(generateTreeString(
-                entry.getValue(),
-                nextPrefix,
-                lastPrefix,
-                indent,
-                middlePrefix
-            ));
+    /**
+     * 读取文件并渲染为完整的 {@code <document>} 片段
+     */
+    private DocumentFragment renderFragment(VirtualFile file, String relativePath) {
+        long stamp = file.getModificationStamp();
+        int minifyMask = minifier.getStagesMask();
+        long snippetKey = snippetKey(file);
+        StringBuilder text = new StringBuilder();
+        text.append("<document path=\"").append(relativePath).append("\">\n");
+        try {
+            byte[] fileContent = file.contentsToByteArray();
+            String content = StringUtil.convertLineSeparators(new String(fileContent, StandardCharsets.UTF_8));
+            if (snippetKey >= 0) {
+                return renderSnippetFragment(file, stamp, minifyMask, snippetKey, content, text);
+            }
+            if (minifyMask != 0) {
+                content = minifier.minify(file.getFileType(), content);
+            }
+            text.append(content);
+            if (!content.endsWith("\n")) {
+                text.append("\n");
+            }
+            text.append(DOCUMENT_END);
+            return new DocumentFragment(file, stamp, minifyMask, snippetKey, null, text.toString(), fileContent.length, true);
+        } catch (IOException e) {
+            text.append("// Error reading file content: ").append(e.getMessage()).append("\n");
+            text.append(DOCUMENT_END);
+            // 读取失败的片段不缓存, 下次重新尝试读取
+            return new DocumentFragment(file, stamp, minifyMask, snippetKey, null, text.toString(), 0, false);
         }
-        
-        return result.toString();
+    }
+
+    /**
+     * 只输出匹配所在的行及上下文. 匹配位置对应原始内容, 因此片段模式下不做精简;
+     * 行索引随片段缓存, 上下文行数或匹配变化后重新渲染时, 文件未修改则直接复用
+     */
+    private DocumentFragment renderSnippetFragment(VirtualFile file, long stamp, int minifyMask, long snippetKey,
+                                                   String content, StringBuilder text) {
+        // 匹配偏移来自 Document, 不含 BOM
+        if (content.startsWith("\uFEFF")) {
+            content = content.substring(1);
+        }
+        MatchRanges matches = matchRanges;
+        long[] ranges = matches == null ? null : matches.get(file);
+        DocumentFragment previous = fragmentCache.get(file);
+        LineIndex lineIndex = previous != null && previous.lineIndex != null && previous.modificationStamp == stamp
+            && previous.lineIndex.getTextLength() == content.length() ? previous.lineIndex : LineIndex.of(content);
+
+        int contentStart = text.length();
+        if (ranges != null) {
+            SnippetRenderer.render(content, lineIndex, ranges, snippetContextLines, text);
+        }
+        int contentLength = text.length() - contentStart;
+        text.append(DOCUMENT_END);
+        return new DocumentFragment(file, stamp, minifyMask, snippetKey, lineIndex, text.toString(), contentLength, true);
+    }
+
+    /**
+     * 不经过缓存, 以固定大小的缓冲区把文件内容直接写到输出, 同时统一行分隔符
+     */
+    private void streamDocument(VirtualFile file, String relativePath, Appendable out) throws IOException {
+        out.append("<document path=\"").append(relativePath).append("\">\n");
+        char last = '\n';
+        boolean empty = true;
+        try (Reader reader = new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            boolean pendingCR = false;
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (pendingCR && c == '\n') {
+                        // \r\n 中的 \n 已随 \r 输出
+                        start = i + 1;
+                    } else if (c == '\r') {
+                        appendRange(out, buffer, start, i);
+                        out.append('\n');
+                        start = i + 1;
+                    }
+                    pendingCR = c == '\r';
+                }
+                appendRange(out, buffer, start, read);
+                if (read > 0) {
+                    last = buffer[read - 1] == '\r' ? '\n' : buffer[read - 1];
+                    empty = false;
+                }
+            }
+        } catch (IOException e) {
+            out.append("// Error reading file content: ").append(e.getMessage()).append("\n");
+            last = '\n';
+            empty = false;
+        }
+        if (empty || last != '\n') {
+            out.append('\n');
+        }
+        out.append("</document>\n\n");
+    }
+
+    private static void appendRange(Appendable out, char[] buffer, int start, int end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        if (out instanceof Writer) {
+            ((Writer) out).write(buffer, start, end - start);
+        } else {
+            out.append(CharBuffer.wrap(buffer, start, end - start));
+        }
+    }
+
+    /**
+     * 清除片段缓存并关闭文件加载线程池, 对话框关闭时调用以释放资源
+     */
+    public void dispose() {
+        fragmentCache.clear();
+        fileLoader.shutdown();
     }
 
     private String getRelativePath(VirtualFile file, String basePath) {
@@ -162,17 +690,62 @@ public class PromptGenerator {
         return filePath;
     }
 
-    private static class TreeNode {
-        final String path;
-        final Map<String, TreeNode> children = new TreeMap<>();
+    // 单个文件渲染后的 <document> 片段
+    private static class DocumentFragment {
+        final VirtualFile file;
+        final long modificationStamp;
+        // 渲染时启用的精简阶段
+        final int minifyMask;
+        // 渲染时的片段配置, 见 snippetKey; 片段模式下同时保留行索引
+        final long snippetKey;
+        final LineIndex lineIndex;
+        final String text;
+        final int contentLength;
+        final int tokenCount;
+        final boolean cacheable;
+        // 大纲在第一次打包需要时生成; 并发生成的结果相同, 不加锁
+        private volatile String outline;
+        private volatile int outlineTokenCount;
 
-        TreeNode(String path) {
-            this.path = path;
+        DocumentFragment(VirtualFile file, long modificationStamp, int minifyMask, long snippetKey, LineIndex lineIndex,
+                         String text, int contentLength, boolean cacheable) {
+            this.file = file;
+            this.modificationStamp = modificationStamp;
+            this.minifyMask = minifyMask;
+            this.snippetKey = snippetKey;
+            this.lineIndex = lineIndex;
+            this.text = text;
+            this.contentLength = contentLength;
+            this.tokenCount = TokenCounter.estimateTokens(text);
+            this.cacheable = cacheable;
         }
 
-        String getName() {
-            int lastSlash = path.lastIndexOf('/');
-            return lastSlash >= 0 ? path.substring(lastSlash + 1) : path;
+        /**
+         * 只含声明行的 {@code <document>} 片段, 见 {@link OutlineRenderer}
+         */
+        String outline() {
+            String result = outline;
+            if (result == null) {
+                int contentStart = text.indexOf('\n') + 1;
+                StringBuilder builder = new StringBuilder();
+                builder.append(text, 0, contentStart);
+                OutlineRenderer.render(text, contentStart, text.length() - DOCUMENT_END.length(), builder);
+                builder.append("... (outline only, bodies omitted to fit token budget)\n");
+                builder.append(DOCUMENT_END);
+                result = builder.toString();
+                outlineTokenCount = TokenCounter.estimateTokens(result);
+                outline = result;
+            }
+            return result;
+        }
+
+        int outlineTokens() {
+            // 片段模式的内容已经很短, 不生成大纲
+            if (snippetKey >= 0) {
+                return tokenCount;
+            }
+            outline();
+            return outlineTokenCount;
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package com.github.codebase2prompt.core;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 片段模式: 只输出匹配所在的行及其前后若干行上下文, 范围重叠或相邻的片段合并为一个
+ * <p>
+ * 输出格式为 {@code <snippet lines="起始-结束">}, 行号从 1 开始
+ */
+public final class SnippetRenderer {
+    private SnippetRenderer() {
+    }
+
+    /**
+     * @param content 文件内容, 行分隔符已统一为 \n
+     * @param lineIndex content 的行索引
+     * @param ranges 按起点排序的匹配范围, 见 {@link MatchRanges#get}
+     * @param contextLines 每个匹配前后保留的行数
+     */
+    public static void render(@NotNull CharSequence content, @NotNull LineIndex lineIndex, @NotNull long[] ranges,
+                             int contextLines, @NotNull StringBuilder out) {
+        int lastLine = lineIndex.getLineCount() - 1;
+        int i = 0;
+        while (i < ranges.length) {
+            int first = Math.max(0, startLine(lineIndex, ranges[i]) - contextLines);
+            int last = Math.min(lastLine, endLine(lineIndex, ranges[i]) + contextLines);
+            // 范围按起点有序, 下一个片段的首行不超过当前末行的下一行时合并
+            while (++i < ranges.length) {
+                int nextFirst = Math.max(0, startLine(lineIndex, ranges[i]) - contextLines);
+                if (nextFirst > last + 1) {
+                    break;
+                }
+                last = Math.max(last, Math.min(lastLine, endLine(lineIndex, ranges[i]) + contextLines));
+            }
+
+            out.append("<snippet lines=\"").append(first + 1).append('-').append(last + 1).append("\">\n");
+            int end = lineIndex.getLineEnd(last);
+            out.append(content, lineIndex.getLineStart(first), end);
+            if (end == 0 || content.charAt(end - 1) != '\n') {
+                out.append('\n');
+            }
+            out.append("</snippet>\n");
+        }
+    }
+
+    private static int startLine(LineIndex lineIndex, long range) {
+        return lineIndex.getLineNumber(Math.min(MatchRanges.getStart(range), lineIndex.getTextLength()));
+    }
+
+    private static int endLine(LineIndex lineIndex, long range) {
+        // 终点不含, 匹配以换行结束时不算入下一行
+        int end = Math.max(MatchRanges.getStart(range), MatchRanges.getEnd(range) - 1);
+        return lineIndex.getLineNumber(Math.min(end, lineIndex.getTextLength()));
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.codebase2prompt.core;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 在 Token 预算内挑选文件: 按优先级完整放入能放下的文件, 其余文件依次改为大纲,
+ * 剩余预算用于截断放入优先级最高的未完整放入的文件, 仍放不下的文件省略
+ * <p>
+ * 只处理每个文件的 Token 数量, 不接触文件内容, 数千个候选也可以在毫秒级完成
+ */
+public final class TokenBudgetPacker {
+    // 截断后至少保留的 Tokens, 预算不足时直接省略
+    public static final int MIN_TRUNCATED_TOKENS = 256;
+
+    public enum Decision {
+        FULL,
+        TRUNCATED,
+        OUTLINED,
+        OMITTED
+    }
+
+    private TokenBudgetPacker() {
+    }
+
+    /**
+     * @param tokens 每个文件的 Tokens 数量
+     * @param outlineTokens 每个文件大纲的 Tokens 数量
+     * @param order 文件下标, 按优先级从高到低排列
+     * @param budget 可用于文件内容的 Tokens 预算
+     * @return 每个文件的打包结果, 按原始下标访问
+     */
+    public static Plan pack(@NotNull int[] tokens, @NotNull int[] outlineTokens, @NotNull int[] order, int budget) {
+        int count = tokens.length;
+        Decision[] decisions = new Decision[count];
+        int[] allowed = new int[count];
+        int remaining = Math.max(0, budget);
+
+        // 1. 按优先级完整放入能放下的文件
+        for (int i : order) {
+            if (tokens[i] <= remaining) {
+                decisions[i] = Decision.FULL;
+                allowed[i] = tokens[i];
+                remaining -= tokens[i];
+            }
+        }
+
+        // 2. 未放下的文件按优先级改为大纲
+        for (int i : order) {
+            if (decisions[i] == null && outlineTokens[i] < tokens[i] && outlineTokens[i] <= remaining) {
+                decisions[i] = Decision.OUTLINED;
+                allowed[i] = outlineTokens[i];
+                remaining -= outlineTokens[i];
+            }
+        }
+
+        // 3. 剩余预算截断放入优先级最高的未完整放入的文件, 已放入的大纲预算一并归它使用
+        for (int i : order) {
+            if (decisions[i] == Decision.FULL) {
+                continue;
+            }
+            if (remaining >= MIN_TRUNCATED_TOKENS) {
+                decisions[i] = Decision.TRUNCATED;
+                allowed[i] += remaining;
+                remaining = 0;
+            }
+            break;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (decisions[i] == null) {
+                decisions[i] = Decision.OMITTED;
+            }
+        }
+        return new Plan(decisions, allowed, Math.max(0, budget) - remaining);
+    }
+
+    public static final class Plan {
+        private final Decision[] decisions;
+        private final int[] allowedTokens;
+        private final int usedTokens;
+
+        private Plan(Decision[] decisions, int[] allowedTokens, int usedTokens) {
+            this.decisions = decisions;
+            this.allowedTokens = allowedTokens;
+            this.usedTokens = usedTokens;
+        }
+
+        public Decision getDecision(int index) {
+            return decisions[index];
+        }
+
+        public int getAllowedTokens(int index) {
+            return allowedTokens[index];
+        }
+
+        public int getUsedTokens() {
+            return usedTokens;
+        }
+
+        public int count(Decision decision) {
+            int n = 0;
+            for (Decision d : decisions) {
+                if (d == decision) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -1,19 +1,53 @@
 package com.github.codebase2prompt.core;
 
+import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class TokenCounter {
+    private static final Logger LOG = Logger.getInstance(TokenCounter.class);
 
-    // 匹配英文单词、数字和常见符号的正则表达式
-    private static final Pattern WORD_PATTERN = Pattern.compile("[a-zA-Z0-9]+|\\p{Punct}");
-    // 匹配中文字符的正则表达式
-    private static final Pattern CHINESE_PATTERN = Pattern.compile("[\\u4e00-\\u9fa5]");
+    // 内置词表位置 (tiktoken 格式的 cl100k_base, 构建时由 downloadTokenizerVocabulary 下载并打包), 也可通过系统属性指定本地文件
+    private static final String VOCABULARY_RESOURCE = "/tokenizer/cl100k_base.tiktoken";
+    private static final String VOCABULARY_PROPERTY = "codebase2prompt.tokenizer.vocabulary";
+
+    // 超过该长度的文本拆分到 ForkJoinPool 并行计算
+    private static final int PARALLEL_THRESHOLD = 256 * 1024;
+    private static final int LEAF_SIZE = 128 * 1024;
+
+    private static final byte OTHER = 0;
+    private static final byte LETTER = 1;
+    private static final byte DIGIT = 2;
+    private static final byte SPACE = 3;
+    private static final byte NEWLINE = 4;
+    private static final byte[] ASCII_CLASS = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            if (Character.isLetter(c)) {
+                ASCII_CLASS[c] = LETTER;
+            } else if (Character.isDigit(c)) {
+                ASCII_CLASS[c] = DIGIT;
+            } else if (c == '\r' || c == '\n') {
+                ASCII_CLASS[c] = NEWLINE;
+            } else if (c == ' ' || c == '\t' || c == 0x0B || c == '\f') {
+                ASCII_CLASS[c] = SPACE;
+            }
+        }
+    }
+
+    private static final ThreadLocal<BpeTokenizer.Scratch> SCRATCH = ThreadLocal.withInitial(BpeTokenizer.Scratch::new);
 
     /**
      * 估算文本内容的 Tokens 数量
+     * <p>
+     * 按 cl100k 的预分词规则切分后, 有词表时用 BPE 精确计数, 没有词表时按片段类型估算
      *
      * @param text 需要计算的文本内容
      * @return 估算的 Tokens 数量
@@ -22,30 +56,281 @@ public class TokenCounter {
         if (text.isEmpty()) {
             return 0;
         }
-        // 对于大的内容, 计算 tokens 比较慢(正则慢), 减化处理
-        return text.length();
-
-        // int totalTokens = 0;
-        //
-        // Matcher wordMatcher = WORD_PATTERN.matcher(text);
-        // Matcher chineseMatcher = CHINESE_PATTERN.matcher(text);
-        //
-        // while (wordMatcher.find()) {
-        //     String match = wordMatcher.group();
-        //     // 英文单词和数字按照长度估算
-        //     if (match.matches("[a-zA-Z0-9]+")) {
-        //         totalTokens += Math.max(1, (int) Math.ceil(match.length() / 4.0));
-        //     } else {
-        //         // 标点符号算作一个 token
-        //         totalTokens++;
-        //     }
-        // }
-        //
-        // while (chineseMatcher.find()) {
-        //     // 中文字符算作两个 token
-        //     totalTokens += 2;
-        // }
-        //
-        // return totalTokens;
+        BpeTokenizer tokenizer = Vocabulary.TOKENIZER;
+        if (text.length() < PARALLEL_THRESHOLD) {
+            return countRange(text, 0, text.length(), tokenizer);
+        }
+        return ForkJoinPool.commonPool().invoke(new CountTask(text, 0, text.length(), tokenizer));
+    }
+
+    /**
+     * 是否加载了 BPE 词表, 未加载时 {@link #estimateTokens(String)} 为启发式估算
+     */
+    public static boolean isExact() {
+        return Vocabulary.TOKENIZER != null;
+    }
+
+    private static int countRange(String text, int from, int to, @Nullable BpeTokenizer tokenizer) {
+        BpeTokenizer.Scratch scratch = SCRATCH.get();
+        char[] chars = scratch.chars(to - from);
+        text.getChars(from, to, chars, 0);
+        return countChars(chars, to - from, tokenizer, scratch);
+    }
+
+    private static int countChars(char[] chars, int end, @Nullable BpeTokenizer tokenizer, BpeTokenizer.Scratch scratch) {
+        int total = 0;
+        int i = 0;
+        while (i < end) {
+            int pieceEnd = pieceEnd(chars, i, end);
+            total += tokenizer != null
+                ? encodeAndCount(chars, i, pieceEnd, tokenizer, scratch)
+                : estimatePiece(chars, i, pieceEnd);
+            i = pieceEnd;
+        }
+        return total;
+    }
+
+    /**
+     * 手写的 cl100k 预分词, 等价于正则
+     * {@code (?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\r\n\p{L}\p{N}]?\p{L}+|\p{N}{1,3}| ?[^\s\p{L}\p{N}]+[\r\n]*|\s*[\r\n]+|\s+(?!\S)|\s+}
+     *
+     * @return 从 start 开始的片段的结束位置
+     */
+    static int pieceEnd(char[] t, int start, int end) {
+        char c = t[start];
+        int cls = classOf(c);
+
+        // 最常见的情况: 以字母开头, 整段连续字母为一个片段 (规则 2 不带前缀)
+        if (cls == LETTER) {
+            int j = start + 1;
+            while (j < end && classOf(t[j]) == LETTER) {
+                j++;
+            }
+            return j;
+        }
+
+        // 1. 英文缩写
+        if (c == '\'' && start + 1 < end) {
+            char c1 = Character.toLowerCase(t[start + 1]);
+            if (c1 == 's' || c1 == 't' || c1 == 'm' || c1 == 'd') {
+                return start + 2;
+            }
+            if (start + 2 < end) {
+                char c2 = Character.toLowerCase(t[start + 2]);
+                if ((c1 == 'r' && c2 == 'e') || (c1 == 'v' && c2 == 'e') || (c1 == 'l' && c2 == 'l')) {
+                    return start + 3;
+                }
+            }
+        }
+
+        // 2. 可选的一个非字母数字前缀 + 连续字母
+        int j = start;
+        if (cls != LETTER && cls != DIGIT && cls != NEWLINE && j + 1 < end && classOf(t[j + 1]) == LETTER) {
+            j++;
+        }
+        if (classOf(t[j]) == LETTER) {
+            j++;
+            while (j < end && classOf(t[j]) == LETTER) {
+                j++;
+            }
+            return j;
+        }
+
+        // 3. 最多 3 位数字
+        if (cls == DIGIT) {
+            j = start + 1;
+            while (j < end && j < start + 3 && classOf(t[j]) == DIGIT) {
+                j++;
+            }
+            return j;
+        }
+
+        // 4. 可选空格 + 连续符号 + 换行
+        j = start;
+        if (c == ' ' && j + 1 < end && classOf(t[j + 1]) == OTHER) {
+            j++;
+        }
+        if (classOf(t[j]) == OTHER) {
+            j++;
+            while (j < end && classOf(t[j]) == OTHER) {
+                j++;
+            }
+            while (j < end && classOf(t[j]) == NEWLINE) {
+                j++;
+            }
+            return j;
+        }
+
+        // 5. 以换行结尾的空白
+        j = start;
+        int lastNewline = -1;
+        while (j < end) {
+            int k = classOf(t[j]);
+            if (k == NEWLINE) {
+                lastNewline = j;
+            } else if (k != SPACE) {
+                break;
+            }
+            j++;
+        }
+        if (lastNewline >= 0) {
+            return lastNewline + 1;
+        }
+
+        // 6. 空白后紧跟非空白时, 最后一个空白留给下一个片段
+        if (j < end && j - start > 1) {
+            return j - 1;
+        }
+        // 7. 其余空白
+        return j;
+    }
+
+    private static int classOf(char c) {
+        // ASCII 查表, 其余字符放在单独的方法中, 使本方法足够小, 能内联到扫描循环
+        return c < 128 ? ASCII_CLASS[c] : classOfNonAscii(c);
+    }
+
+    private static int classOfNonAscii(char c) {
+        if (Character.isLetter(c)) {
+            return LETTER;
+        }
+        switch (Character.getType(c)) {
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                return DIGIT;
+            case Character.LINE_SEPARATOR:
+            case Character.PARAGRAPH_SEPARATOR:
+            case Character.SPACE_SEPARATOR:
+                return SPACE;
+            default:
+                return c == '\u0085' ? SPACE : OTHER;
+        }
+    }
+
+    private static int encodeAndCount(char[] t, int from, int to, BpeTokenizer tokenizer, BpeTokenizer.Scratch scratch) {
+        // 一个 char 最多 3 字节 (代理对两个 char 共 4 字节), 整个片段一次编码, 不切分
+        byte[] bytes = scratch.bytes((to - from) * 3);
+        int h = BpeTokenizer.FNV_OFFSET;
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = t[i];
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+                h = (h ^ c) * BpeTokenizer.FNV_PRIME;
+                continue;
+            }
+            int start = n;
+            if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(t[i + 1])) {
+                int cp = Character.toCodePoint(c, t[++i]);
+                bytes[n++] = (byte) (0xF0 | (cp >> 18));
+                bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                bytes[n++] = (byte) (0xE0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+            for (int k = start; k < n; k++) {
+                h = (h ^ (bytes[k] & 0xFF)) * BpeTokenizer.FNV_PRIME;
+            }
+        }
+        return tokenizer.countPieceTokens(bytes, n, h, scratch);
+    }
+
+    /**
+     * 没有词表时按片段类型估算: 英文单词约 4 个字符一个 Token, 数字片段 1 个,
+     * 非 ASCII 字符 (如中文) 每个约 1 个, 符号约 2 个字符一个, 空白 1 个
+     */
+    private static int estimatePiece(char[] t, int from, int to) {
+        int first = t[from] == ' ' && to - from > 1 ? from + 1 : from;
+        int cls = classOf(t[first]);
+        if (cls == DIGIT || cls == SPACE || cls == NEWLINE) {
+            return 1;
+        }
+        int ascii = 0;
+        int nonAscii = 0;
+        for (int i = from; i < to; i++) {
+            if (t[i] < 128) {
+                ascii++;
+            } else if (!Character.isLowSurrogate(t[i])) {
+                nonAscii++;
+            }
+        }
+        int divisor = cls == LETTER ? 4 : 2;
+        return nonAscii + (ascii + divisor - 1) / divisor;
+    }
+
+    // 在 "\n" 之后紧跟非空白字符的位置切分, 该位置不会落在任何预分词片段中间
+    private static int findSplitPoint(String text, int from, int to) {
+        int mid = from + (to - from) / 2;
+        for (int i = mid; i < to; i++) {
+            if (text.charAt(i - 1) == '\n' && !Character.isWhitespace(text.charAt(i))) {
+                return i;
+            }
+        }
+        for (int i = mid - 1; i > from; i--) {
+            if (text.charAt(i - 1) == '\n' && !Character.isWhitespace(text.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class CountTask extends RecursiveTask<Integer> {
+        private final String text;
+        private final int from;
+        private final int to;
+        private final BpeTokenizer tokenizer;
+
+        CountTask(String text, int from, int to, @Nullable BpeTokenizer tokenizer) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.tokenizer = tokenizer;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > LEAF_SIZE) {
+                int split = findSplitPoint(text, from, to);
+                if (split > from) {
+                    CountTask left = new CountTask(text, from, split, tokenizer);
+                    left.fork();
+                    int right = new CountTask(text, split, to, tokenizer).compute();
+                    return left.join() + right;
+                }
+            }
+            return countRange(text, from, to, tokenizer);
+        }
+    }
+
+    // 延迟加载词表, 加载失败时退回启发式估算
+    private static class Vocabulary {
+        static final BpeTokenizer TOKENIZER = load();
+
+        private static BpeTokenizer load() {
+            long t0 = System.currentTimeMillis();
+            String customPath = System.getProperty(VOCABULARY_PROPERTY);
+            try (InputStream in = customPath != null
+                ? new FileInputStream(customPath)
+                : TokenCounter.class.getResourceAsStream(VOCABULARY_RESOURCE)) {
+                if (in == null) {
+                    LOG.info("BPE vocabulary not bundled, token counts are estimated");
+                    return null;
+                }
+                BpeTokenizer tokenizer = BpeTokenizer.load(in);
+                LOG.info(String.format("Loaded BPE vocabulary with %d tokens in %d ms",
+                    tokenizer.getVocabularySize(), System.currentTimeMillis() - t0));
+                return tokenizer;
+            } catch (IOException e) {
+                LOG.warn("Failed to load BPE vocabulary, token counts are estimated", e);
+                return null;
+            }
+        }
     }
 }
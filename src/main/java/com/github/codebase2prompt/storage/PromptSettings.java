@@ -0,0 +1,130 @@
+package com.github.codebase2prompt.storage;
+
+import com.intellij.openapi.components.*;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+@State(
+    name = "Codebase2PromptSettings",
+    storages = {@Storage("codebase2prompt.xml")}
+)
+public class PromptSettings implements PersistentStateComponent<PromptSettings.State> {
+    public static final long DEFAULT_SIZE_LIMIT = 5 * 1024 * 1024; // 5MB
+    public static final int DEFAULT_SELECTION_DEBOUNCE_MS = 150;
+    public static final int DEFAULT_SNIPPET_CONTEXT_LINES = 3;
+    private State myState = new State();
+
+    public static class State {
+        // Token 预算, 0 表示不限制
+        public int tokenBudget = 0;
+        // 目录结构使用紧凑格式
+        public boolean compactFolderStructure = false;
+        // 文件内容总大小限制 (字节)
+        public long sizeLimit = DEFAULT_SIZE_LIMIT;
+        // 内容精简: 删除注释、删除许可证头、合并 import、折叠空白
+        public boolean stripComments = false;
+        public boolean stripLicenseHeaders = false;
+        public boolean collapseImports = false;
+        public boolean foldWhitespace = false;
+        // 选择变化的合并窗口 (毫秒), 窗口内的连续变化只触发一次生成
+        public int selectionDebounceMs = DEFAULT_SELECTION_DEBOUNCE_MS;
+        // 片段模式: 来自搜索结果的文件只输出匹配行及前后若干行
+        public boolean snippetMode = false;
+        public int snippetContextLines = DEFAULT_SNIPPET_CONTEXT_LINES;
+    }
+
+    public static PromptSettings getInstance(Project project) {
+        return project.getService(PromptSettings.class);
+    }
+
+    @Override
+    public @Nullable State getState() {
+        return myState;
+    }
+
+    @Override
+    public void loadState(@NotNull State state) {
+        myState = state;
+    }
+
+    public int getTokenBudget() {
+        return myState.tokenBudget;
+    }
+
+    public void setTokenBudget(int tokenBudget) {
+        myState.tokenBudget = Math.max(0, tokenBudget);
+    }
+
+    public boolean isCompactFolderStructure() {
+        return myState.compactFolderStructure;
+    }
+
+    public void setCompactFolderStructure(boolean compactFolderStructure) {
+        myState.compactFolderStructure = compactFolderStructure;
+    }
+
+    public long getSizeLimit() {
+        return myState.sizeLimit > 0 ? myState.sizeLimit : DEFAULT_SIZE_LIMIT;
+    }
+
+    public void setSizeLimit(long sizeLimit) {
+        myState.sizeLimit = sizeLimit;
+    }
+
+    public boolean isStripComments() {
+        return myState.stripComments;
+    }
+
+    public void setStripComments(boolean stripComments) {
+        myState.stripComments = stripComments;
+    }
+
+    public boolean isStripLicenseHeaders() {
+        return myState.stripLicenseHeaders;
+    }
+
+    public void setStripLicenseHeaders(boolean stripLicenseHeaders) {
+        myState.stripLicenseHeaders = stripLicenseHeaders;
+    }
+
+    public boolean isCollapseImports() {
+        return myState.collapseImports;
+    }
+
+    public void setCollapseImports(boolean collapseImports) {
+        myState.collapseImports = collapseImports;
+    }
+
+    public boolean isFoldWhitespace() {
+        return myState.foldWhitespace;
+    }
+
+    public void setFoldWhitespace(boolean foldWhitespace) {
+        myState.foldWhitespace = foldWhitespace;
+    }
+
+    public int getSelectionDebounceMs() {
+        return myState.selectionDebounceMs;
+    }
+
+    public void setSelectionDebounceMs(int selectionDebounceMs) {
+        myState.selectionDebounceMs = Math.max(0, selectionDebounceMs);
+    }
+
+    public boolean isSnippetMode() {
+        return myState.snippetMode;
+    }
+
+    public void setSnippetMode(boolean snippetMode) {
+        myState.snippetMode = snippetMode;
+    }
+
+    public int getSnippetContextLines() {
+        return myState.snippetContextLines;
+    }
+
+    public void setSnippetContextLines(int snippetContextLines) {
+        myState.snippetContextLines = Math.max(0, snippetContextLines);
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.codebase2prompt.ui;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 文件选择状态, 以位图保存, 文件序号由文件树确定, 文件增加时通过 {@link #remap} 换成新的序号
+ * <p>
+ * 文件树只负责显示这里的状态. 读取、计数、比较和快照都是对 long 数组的操作,
+ * 不需要遍历树节点. 每次用户操作结束时调用 {@link #commit()} 记录撤销历史
+ *
+ * @param <T> 文件类型
+ */
+public class FileSelectionModel<T> {
+    private static final int MAX_HISTORY = 100;
+
+    private final List<T> files;
+    private final long[] words;
+    private int selectedCount;
+    // 上一次提交时的状态, 撤销栈中保存的是它之前的状态
+    private Snapshot committed;
+    private final Deque<Snapshot> undoStack = new ArrayDeque<>();
+    private final Deque<Snapshot> redoStack = new ArrayDeque<>();
+
+    /**
+     * @param files 所有文件, 列表中的位置即文件序号
+     */
+    public FileSelectionModel(@NotNull List<T> files) {
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        this.words = new long[(files.size() + 63) >>> 6];
+        this.committed = snapshot();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public T getFile(int index) {
+        return files.get(index);
+    }
+
+    public boolean isSelected(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return 状态是否发生变化
+     */
+    public boolean setSelected(int index, boolean selected) {
+        long mask = 1L << index;
+        long word = words[index >>> 6];
+        if (((word & mask) != 0) == selected) {
+            return false;
+        }
+        words[index >>> 6] = selected ? word | mask : word & ~mask;
+        selectedCount += selected ? 1 : -1;
+        return true;
+    }
+
+    public void setAll(boolean selected) {
+        Arrays.fill(words, selected ? -1L : 0L);
+        if (selected && (files.size() & 63) != 0) {
+            // 清除最后一个 word 中超出文件数量的位
+            words[words.length - 1] = (1L << files.size()) - 1;
+        }
+        selectedCount = selected ? files.size() : 0;
+    }
+
+    /**
+     * 设置序号在 [from, to) 内的文件, 按 word 批量处理
+     */
+    public void setRange(int from, int to, boolean selected) {
+        if (from >= to) {
+            return;
+        }
+        int before = countSelected(from, to);
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        for (int w = firstWord; w <= lastWord; w++) {
+            long mask = rangeMask(w, from, to);
+            words[w] = selected ? words[w] | mask : words[w] & ~mask;
+        }
+        selectedCount += (selected ? to - from : 0) - before;
+    }
+
+    /**
+     * 序号在 [from, to) 内的已选中文件数
+     */
+    public int countSelected(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int count = 0;
+        int lastWord = (to - 1) >>> 6;
+        for (int w = from >>> 6; w <= lastWord; w++) {
+            count += Long.bitCount(words[w] & rangeMask(w, from, to));
+        }
+        return count;
+    }
+
+    private static long rangeMask(int word, int from, int to) {
+        long mask = -1L;
+        if (word == from >>> 6) {
+            mask &= -1L << from;
+        }
+        if (word == (to - 1) >>> 6) {
+            mask &= -1L >>> -to;
+        }
+        return mask;
+    }
+
+    public int getSelectedCount() {
+        return selectedCount;
+    }
+
+    /**
+     * 按文件序号顺序返回选中的文件
+     */
+    public List<T> getSelectedFiles() {
+        List<T> selected = new ArrayList<>(selectedCount);
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                selected.add(files.get((w << 6) + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
+            }
+        }
+        return selected;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(words.clone(), selectedCount);
+    }
+
+    public void restore(@NotNull Snapshot snapshot) {
+        System.arraycopy(snapshot.words, 0, words, 0, words.length);
+        selectedCount = snapshot.selectedCount;
+    }
+
+    /**
+     * 结束一次用户操作: 状态与上次提交不同时, 把上次提交的状态压入撤销栈并清空重做栈
+     *
+     * @return 状态是否发生变化
+     */
+    public boolean commit() {
+        if (committed.isSameSelection(words)) {
+            return false;
+        }
+        push(undoStack, committed);
+        redoStack.clear();
+        committed = snapshot();
+        return true;
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * @return 是否已撤销, 撤销栈为空时返回 false
+     */
+    public boolean undo() {
+        return step(undoStack, redoStack);
+    }
+
+    /**
+     * @return 是否已重做, 重做栈为空时返回 false
+     */
+    public boolean redo() {
+        return step(redoStack, undoStack);
+    }
+
+    private boolean step(Deque<Snapshot> from, Deque<Snapshot> to) {
+        // 未提交的修改先提交, 保证可以回到当前状态
+        commit();
+        Snapshot target = from.pollFirst();
+        if (target == null) {
+            return false;
+        }
+        push(to, committed);
+        restore(target);
+        committed = target;
+        return true;
+    }
+
+    /**
+     * 文件增加后按新的序号重建模型, 当前状态和撤销/重做历史一并映射, 新增的文件未选中
+     *
+     * @param files 全部文件, 列表中的位置即新的文件序号
+     * @param oldToNew 旧序号对应的新序号
+     */
+    public FileSelectionModel<T> remap(@NotNull List<T> files, int[] oldToNew) {
+        FileSelectionModel<T> model = new FileSelectionModel<>(files);
+        model.restore(snapshot().remap(oldToNew, files.size()));
+        model.committed = committed.remap(oldToNew, files.size());
+        for (Snapshot snapshot : undoStack) {
+            model.undoStack.addLast(snapshot.remap(oldToNew, files.size()));
+        }
+        for (Snapshot snapshot : redoStack) {
+            model.redoStack.addLast(snapshot.remap(oldToNew, files.size()));
+        }
+        return model;
+    }
+
+    private static void push(Deque<Snapshot> stack, Snapshot snapshot) {
+        stack.addFirst(snapshot);
+        if (stack.size() > MAX_HISTORY) {
+            stack.removeLast();
+        }
+    }
+
+    /**
+     * 选择状态的不可变快照
+     */
+    public static final class Snapshot {
+        private final long[] words;
+        private final int selectedCount;
+
+        private Snapshot(long[] words, int selectedCount) {
+            this.words = words;
+            this.selectedCount = selectedCount;
+        }
+
+        public int getSelectedCount() {return selectedCount;}
+
+        public boolean isSameSelection(@NotNull Snapshot other) {
+            return selectedCount == other.selectedCount && isSameSelection(other.words);
+        }
+
+        private boolean isSameSelection(long[] otherWords) {
+            return Arrays.equals(words, otherWords);
+        }
+
+        private Snapshot remap(int[] oldToNew, int size) {
+            long[] remapped = new long[(size + 63) >>> 6];
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    int index = oldToNew[(w << 6) + Long.numberOfTrailingZeros(word)];
+                    remapped[index >>> 6] |= 1L << index;
+                    word &= word - 1;
+                }
+            }
+            return new Snapshot(remapped, selectedCount);
+        }
+    }
+}
@@ -1,142 +1,733 @@
 package com.github.codebase2prompt.ui;
 
 import com.github.codebase2prompt.action.FindInFilesListener;
+import com.github.codebase2prompt.core.FilePathIndex;
+import com.github.codebase2prompt.core.PromptGenerator;
+import com.github.codebase2prompt.util.CoalescingScheduler;
+import com.github.codebase2prompt.util.EdtExecutor;
 import com.github.codebase2prompt.util.PerformanceLogger;
 import com.intellij.icons.AllIcons;
+import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiFile;
 import com.intellij.ui.CheckboxTree;
+import com.intellij.ui.CheckboxTreeBase;
 import com.intellij.ui.CheckedTreeNode;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.SearchTextField;
 import com.intellij.ui.SimpleTextAttributes;
 import com.intellij.ui.components.JBPanel;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.ui.JBUI;
+import com.intellij.util.ui.ThreeStateCheckBox;
+import com.intellij.util.ui.UIUtil;
 import com.intellij.util.ui.tree.TreeUtil;
+import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
 
 import com.intellij.openapi.diagnostic.Logger;
 
 public class FileTreePanel extends JBPanel<FileTreePanel> {
     private static final Logger LOG = Logger.getInstance(FileTreePanel.class);
+    // 初始展开时最多显示的行数, 超出后不再展开更深的目录
+    private static final int INITIAL_VISIBLE_ROWS = 200;
+    // 后台统计 Tokens 时每批处理的文件数, 每批结束后刷新一次显示
+    private static final int STATS_BATCH_SIZE = 200;
+    // 每次 EDT 事件最多插入的文件数, 插入之间让出 EDT 处理绘制和输入
+    private static final int ADD_BATCH_SIZE = 1000;
+    // 过滤框输入的合并窗口, 连续输入只在停顿后过滤一次
+    private static final int FILTER_DEBOUNCE_MS = 150;
     private final Project project;
     private final CheckboxTree tree;
-    private final Map<String, CheckedTreeNode> nodeCache = new HashMap<>();
+    private final FolderTreeNode rootFolder = new FolderTreeNode("", null);
+    // 所有目录, 全选/全不选时直接设置计数, 不需要遍历树
+    private final List<FolderTreeNode> folders = new ArrayList<>();
+    // 相对路径到目录节点, 插入文件时查找父目录
+    private final Map<String, FolderTreeNode> folderCache = new HashMap<>();
+    // 按树中的顺序排列, 位置即文件序号
+    private final List<FileTreeNode> fileNodes = new ArrayList<>();
+    // 完整路径到文件节点, 用于去重和加载选择记录
+    private final Map<String, FileTreeNode> fileNodesByPath = new HashMap<>();
+    // 选择状态, 文件序号即 fileNodes 中的位置, 树上的文件节点直接读写这里的状态
+    private FileSelectionModel<VirtualFile> selectionModel = new FileSelectionModel<>(Collections.emptyList());
+    // 相对路径索引, 第一次过滤时建立, 之后新加入的文件在下次过滤时追加; 索引按加入顺序编号, 与文件序号不同
+    private FilePathIndex pathIndex;
+    // 索引编号到文件节点
+    private final List<FileTreeNode> indexedNodes = new ArrayList<>();
+    // 尚未加入索引的文件节点, 按加入顺序
+    private final List<FileTreeNode> unindexedNodes = new ArrayList<>();
+    private final SearchTextField filterField = new SearchTextField(false);
+    private final CoalescingScheduler filterScheduler = new CoalescingScheduler(FILTER_DEBOUNCE_MS);
+    // 匹配过滤条件的文件序号, 未过滤时为 null
+    private BitSet filterMatches;
+    // 每次过滤条件变化加一, 目录节点据此判断可见子节点是否需要重新计算
+    private int filterVersion;
     private FileTreeCallback callback;
-    private boolean isBatchUpdate = false;
     private PromptToolbarPanel toolbarPanel;
+    // 确定文件图标和统计 Tokens 的单线程, 按文件顺序执行, 不与生成任务争抢线程
+    private final ExecutorService statsExecutor =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("Codebase2Prompt File Stats", 1);
+    private volatile boolean disposed;
+    // 统计单个文件的 Tokens, 为 null 时只显示大小; 不统计的文件返回负数
+    private volatile ToIntFunction<VirtualFile> tokenCounter;
+    // 等待插入的文件, 任意线程写入, 在 EDT 上分批取出
+    private final Queue<VirtualFile> pendingFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean insertScheduled = new AtomicBoolean();
+    // 文件来源已结束, 插入完剩余文件后加载完成
+    private volatile boolean sourceFinished;
+    private boolean loaded;
+    private long loadStartTime;
+    private final JLabel loadingLabel = new JLabel();
+
+    public FileTreePanel(Project project, VirtualFile[] files) {
+        this(project);
+        addFiles(Arrays.asList(files));
+        finishLoading();
+    }
 
-    // 添加延迟更新标记
-    private boolean pendingCallbackUpdate = false;
-
-    public FileTreePanel(Project project, PsiFile[] psiFiles) {
+    /**
+     * 创建空的文件树, 文件通过 {@link #addFiles} 分批加入, 来源结束后调用 {@link #finishLoading()}
+     */
+    public FileTreePanel(Project project) {
         super(new BorderLayout());
         this.project = project;
+        folderCache.put("", rootFolder);
+        folders.add(rootFolder);
 
-        // 创建根节点
-        CheckedTreeNode root = new CheckedTreeNode(null);
-
-        // 创建树
-        tree = new CheckboxTree(new FileTreeCellRenderer(), root) {
+        // 创建树, 关闭 CheckboxTree 自带的父子联动 (每次都要扫描子节点), 改由目录节点上的计数维护
+        tree = new CheckboxTree(new FileTreeCellRenderer(), new FolderCheckedTreeNode(rootFolder),
+            new CheckboxTreeBase.CheckPolicy(false, false, false, false)) {
             @Override
             protected void onNodeStateChanged(CheckedTreeNode node) {
-                Object userObject = node.getUserObject();
-                if (userObject instanceof FolderTreeNode) {
-                    handleDirectoryNodeStateChange(node, node.isChecked());
-                } else if (userObject instanceof FileTreeNode) {
-                    // 移除了 isBatchUpdate 标志操作，直接更新父节点
-                    updateParentNodesState(node);
-                    // 非批量操作时触发回调
-                    if (!isBatchUpdate) {
-                        updateCallback();
-                        updateToolbarButtonState();
-                    }
-                } else if (!isBatchUpdate) {
-                    updateCallback();
-                    updateToolbarButtonState();
-                }
+                // 勾选状态已由节点的 setChecked 写入选择模型和目录计数, 这里只需重绘和通知
+                // 连续的通知由对话框合并, 这里不再延迟
+                repaint();
+                updateCallback();
+                updateToolbarButtonState();
             }
         };
 
-        // 构建树结构
-        buildTree(psiFiles);
-
-        // 设置树的属性
+        // 设置树的属性, 固定行高后 JTree 不再逐行计算高度
         tree.setRootVisible(false);
         tree.setShowsRootHandles(true);
+        tree.setRowHeight(JBUI.scale(22));
+        tree.setLargeModel(true);
+        tree.getEmptyText().setText("正在加载文件...");
 
-        // 初始化时展开所有节点
-        expandAll();
+        // 根目录始终展开, 之后加入的目录按可见行数逐层展开
+        expandInitialLevels();
         // 初始化时取消所有选择
         unselectAll();
 
+        // 过滤框, 输入停顿后查询索引并只刷新可见子节点变化的目录, 不重建节点
+        filterField.getTextEditor().getEmptyText().setText("过滤文件: 子串、通配符 (*.java) 或驼峰 (PGD)");
+        filterField.addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(@NotNull DocumentEvent e) {
+                filterScheduler.submit(done -> {
+                    try {
+                        applyFilter(filterField.getText());
+                        // 只展开, 不收起用户已展开的目录
+                        expandInitialLevels();
+                    } finally {
+                        done.run();
+                    }
+                });
+            }
+        });
+        add(filterField, BorderLayout.NORTH);
+
         // 添加到面板
         add(new JScrollPane(tree), BorderLayout.CENTER);
+
+        // 加载进度, 加载完成后隐藏
+        loadingLabel.setFont(JBUI.Fonts.smallFont());
+        loadingLabel.setForeground(UIUtil.getContextHelpForeground());
+        loadingLabel.setBorder(JBUI.Borders.empty(2, 5));
+        loadingLabel.setText("正在加载文件...");
+        add(loadingLabel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * 加入文件, 可在任意线程调用; 已在树中的文件忽略
+     * <p>
+     * 文件先进入队列, 在 EDT 上每次最多插入 {@link #ADD_BATCH_SIZE} 个, 因此调用方 (如对话框打开) 不受文件数量影响
+     */
+    public void addFiles(Collection<VirtualFile> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        pendingFiles.addAll(files);
+        scheduleInsert();
     }
 
-    private void buildTree(PsiFile[] psiFiles) {
-        CheckedTreeNode root = (CheckedTreeNode) tree.getModel().getRoot();
-        nodeCache.clear();
-        nodeCache.put("", root);
+    /**
+     * 文件来源已结束, 队列中剩余的文件插入后显示最终状态. 可在任意线程调用
+     */
+    public void finishLoading() {
+        sourceFinished = true;
+        scheduleInsert();
+    }
 
-        // 按路径排序
-        Arrays.sort(psiFiles, Comparator.comparing(file -> file.getVirtualFile()
-            .getPath()));
+    private void scheduleInsert() {
+        if (insertScheduled.compareAndSet(false, true)) {
+            EdtExecutor.invokeLater(this::insertPendingFiles);
+        }
+    }
 
-        // 构建树结构
-        for (PsiFile file : psiFiles) {
-            VirtualFile vFile = file.getVirtualFile();
-            String filePath = vFile.getPath();
-            String relativePath = getRelativePath(filePath);
+    private void insertPendingFiles() {
+        insertScheduled.set(false);
+        if (disposed) {
+            return;
+        }
+        List<VirtualFile> batch = new ArrayList<>(ADD_BATCH_SIZE);
+        VirtualFile file;
+        while (batch.size() < ADD_BATCH_SIZE && (file = pendingFiles.poll()) != null) {
+            batch.add(file);
+        }
+        insertFiles(batch);
+
+        if (!pendingFiles.isEmpty()) {
+            scheduleInsert();
+        } else if (sourceFinished && !loaded) {
+            loaded = true;
+            loadingLabel.setVisible(false);
+            tree.getEmptyText().setText("没有文件");
+            PerformanceLogger.logTime("loadFileTree (" + fileNodes.size() + " files)", loadStartTime);
+        }
+    }
 
-            // 创建文件节点的父目录节点
-            createParentNodes(relativePath);
+    /**
+     * 把一批文件插入已有的树: 数据节点按路径顺序插入父目录, 父目录的 Swing 节点已创建时同步插入并通知
+     * nodesWereInserted, 不重新加载整棵树. 之后按树的顺序重新编号, 目录的文件序号范围保持连续
+     */
+    private void insertFiles(List<VirtualFile> batch) {
+        if (loadStartTime == 0) {
+            loadStartTime = System.currentTimeMillis();
+        }
+        // 每个文件只取一次路径, 再按路径排序
+        List<PathEntry> entries = new ArrayList<>(batch.size());
+        for (VirtualFile file : batch) {
+            String path = file.getPath();
+            if (!fileNodesByPath.containsKey(path)) {
+                entries.add(new PathEntry(path, file));
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        entries.sort(Comparator.comparing(entry -> entry.path));
 
+        // 新建的数据节点, 以及插入了 Swing 节点的目录
+        Set<Object> insertedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<FolderCheckedTreeNode> changedTreeNodes = new LinkedHashSet<>();
+        List<FileTreeNode> newFileNodes = new ArrayList<>(entries.size());
+        for (PathEntry entry : entries) {
             // 检查文件大小
-            boolean isLargeFile = vFile.getLength() > 100 * 1024; // 100KB
-            if (isLargeFile) {
-                LOG.warn("file " + filePath + "is too large, skip. size=" + vFile.getLength());
-                // continue;
+            long length = entry.file.getLength();
+            if (length > 100 * 1024) { // 100KB
+                LOG.warn("file " + entry.path + "is too large, skip. size=" + length);
             }
-            // 创建文件节点
-            // FileTreeNode fileTreeNode = new FileTreeNode(file, isLargeFile);
-            FileTreeNode fileTreeNode = new FileTreeNode(file, false);
-            CheckedTreeNode fileNode = new CheckedTreeNode(fileTreeNode);
-            // fileNode.setEnabled(!isLargeFile); // 大文件禁用选择
+            // 新文件的序号在重新编号时确定
+            FileTreeNode fileTreeNode = new FileTreeNode(entry.file, false, -1);
+            fileTreeNode.length = length;
+            fileNodesByPath.put(entry.path, fileTreeNode);
+            newFileNodes.add(fileTreeNode);
+
+            // 创建文件节点的父目录节点
+            FolderTreeNode parent = getOrCreateFolder(getParentPath(getRelativePath(entry.path)), insertedNodes, changedTreeNodes);
+            fileTreeNode.parent = parent;
+            insertChild(parent, fileTreeNode, insertedNodes, changedTreeNodes);
+        }
+
+        unindexedNodes.addAll(newFileNodes);
+        renumberFiles();
+        loadingLabel.setText(String.format("正在加载... 已加载 %d 个文件", fileNodes.size()));
 
-            String parentPath = getParentPath(relativePath);
-            CheckedTreeNode parentNode = nodeCache.get(parentPath);
-            parentNode.add(fileNode);
+        if (filterMatches != null) {
+            // 过滤时可见的子节点由匹配结果决定, 重新过滤一次
+            applyFilter(filterField.getText());
+        } else {
+            DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+            List<TreePath> newFolders = new ArrayList<>();
+            for (FolderCheckedTreeNode treeNode : changedTreeNodes) {
+                int[] indices = treeNode.indicesOf(insertedNodes);
+                model.nodesWereInserted(treeNode, indices);
+                // 展开父目录下新出现的目录, 与初始展开一样以可见行数为限
+                TreePath parentPath = new TreePath(model.getPathToRoot(treeNode));
+                if (tree.isExpanded(parentPath)) {
+                    for (int index : indices) {
+                        TreeNode child = treeNode.getChildAt(index);
+                        if (child instanceof FolderCheckedTreeNode) {
+                            newFolders.add(parentPath.pathByAddingChild(child));
+                        }
+                    }
+                }
+            }
+            expandLevels(newFolders);
         }
+        updateToolbarButtonState();
 
-        // 刷新树模型
-        ((DefaultTreeModel) tree.getModel()).reload();
+        // 大小在插入时已知, Tokens 在后台逐个文件计算, 计算结果就地刷新
+        startStatsPass(newFileNodes);
     }
 
-    private void createParentNodes(String filePath) {
-        String parentPath = getParentPath(filePath);
-        if (parentPath.isEmpty() || nodeCache.containsKey(parentPath)) {
-            return;
+    private FolderTreeNode getOrCreateFolder(String folderPath, Set<Object> insertedNodes, Set<FolderCheckedTreeNode> changedTreeNodes) {
+        FolderTreeNode folder = folderCache.get(folderPath);
+        if (folder != null) {
+            return folder;
         }
 
         // 递归创建父目录节点
-        createParentNodes(parentPath);
+        FolderTreeNode parent = getOrCreateFolder(getParentPath(folderPath), insertedNodes, changedTreeNodes);
+        folder = new FolderTreeNode(getLastPathComponent(folderPath), parent);
+        insertChild(parent, folder, insertedNodes, changedTreeNodes);
+        folderCache.put(folderPath, folder);
+        folders.add(folder);
+        return folder;
+    }
+
+    /**
+     * 按路径顺序把子节点插入目录; 目录的子节点已创建 Swing 节点时, 在相同位置插入对应的 Swing 节点
+     */
+    private void insertChild(FolderTreeNode folder, Object child, Set<Object> insertedNodes, Set<FolderCheckedTreeNode> changedTreeNodes) {
+        String key = sortKey(child);
+        int low = 0;
+        int high = folder.children.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortKey(folder.children.get(mid)).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        folder.children.add(low, child);
+        insertedNodes.add(child);
+
+        FolderCheckedTreeNode treeNode = (FolderCheckedTreeNode) folder.treeNode;
+        if (treeNode != null && treeNode.childrenLoaded) {
+            treeNode.insert(child instanceof FolderTreeNode
+                ? new FolderCheckedTreeNode((FolderTreeNode) child)
+                : new FileCheckedTreeNode((FileTreeNode) child), low);
+            changedTreeNodes.add(treeNode);
+        }
+    }
+
+    /**
+     * 子节点在目录内的排序键, 与按完整路径排序的顺序一致: 目录名后加 '/', 与同名前缀的文件比较时排在相同位置
+     */
+    private static String sortKey(Object child) {
+        return child instanceof FolderTreeNode
+            ? ((FolderTreeNode) child).name + "/"
+            : ((FileTreeNode) child).file.getName();
+    }
+
+    /**
+     * 按树的顺序重新编号所有文件, 重新计算目录的序号范围和大小, 并把选择状态映射到新的序号
+     */
+    private void renumberFiles() {
+        List<FileTreeNode> ordered = new ArrayList<>(fileNodesByPath.size());
+        int[] oldToNew = new int[fileNodes.size()];
+        finishFolder(rootFolder, ordered, oldToNew);
+
+        fileNodes.clear();
+        fileNodes.addAll(ordered);
+        List<VirtualFile> files = new ArrayList<>(ordered.size());
+        for (FileTreeNode node : ordered) {
+            files.add(node.file);
+        }
+        selectionModel = selectionModel.remap(files, oldToNew);
+        recountCheckedFiles();
+    }
+
+    private static void finishFolder(FolderTreeNode folder, List<FileTreeNode> ordered, int[] oldToNew) {
+        folder.fileStart = ordered.size();
+        long totalLength = 0;
+        for (Object child : folder.children) {
+            if (child instanceof FolderTreeNode) {
+                FolderTreeNode subfolder = (FolderTreeNode) child;
+                finishFolder(subfolder, ordered, oldToNew);
+                totalLength += subfolder.totalLength;
+            } else {
+                FileTreeNode file = (FileTreeNode) child;
+                if (file.index >= 0) {
+                    oldToNew[file.index] = ordered.size();
+                }
+                file.index = ordered.size();
+                ordered.add(file);
+                totalLength += file.length;
+            }
+        }
+        folder.fileEnd = ordered.size();
+        folder.totalLength = totalLength;
+        folder.statsText = null;
+    }
+
+    /**
+     * 按过滤文本查询路径索引, 返回匹配的文件序号; 尚未加入索引的文件先追加, 不重建索引
+     */
+    private BitSet matchFilter(String text) {
+        if (pathIndex == null || !unindexedNodes.isEmpty()) {
+            List<String> relativePaths = new ArrayList<>(unindexedNodes.size());
+            for (FileTreeNode node : unindexedNodes) {
+                relativePaths.add(getRelativePath(node.file.getPath()));
+            }
+            indexedNodes.addAll(unindexedNodes);
+            unindexedNodes.clear();
+            if (pathIndex == null) {
+                pathIndex = new FilePathIndex(relativePaths);
+            } else {
+                pathIndex.add(relativePaths);
+            }
+        }
+        BitSet indexMatches = pathIndex.match(text);
+        if (indexMatches == null) {
+            return null;
+        }
+        BitSet matches = new BitSet(fileNodes.size());
+        for (int i = indexMatches.nextSetBit(0); i >= 0; i = indexMatches.nextSetBit(i + 1)) {
+            matches.set(indexedNodes.get(i).index);
+        }
+        return matches;
+    }
+
+    /**
+     * 设置统计 Tokens 的方法, 应在加入文件之前调用; 通常是生成器的 {@link PromptGenerator#countTokens},
+     * 统计时渲染的片段进入生成器的缓存, 勾选后生成不再重复读取
+     */
+    public void setTokenCounter(@NotNull ToIntFunction<VirtualFile> tokenCounter) {
+        this.tokenCounter = tokenCounter;
+    }
+
+    /**
+     * 在后台确定文件图标, 再按文件顺序统计 Tokens, 每批结果经 {@link #updateTokenCounts} 回到 EDT 刷新对应的行,
+     * 选择之前就能看到哪些文件占用的 Tokens 最多. 文件类型识别可能需要读取文件头, 不放在 EDT 的绘制中
+     *
+     * @param nodes 新插入的文件, 多次调用在统计线程上依次执行
+     */
+    private void startStatsPass(List<FileTreeNode> nodes) {
+        statsExecutor.execute(() -> {
+            long t0 = System.currentTimeMillis();
+            Map<FileType, Icon> iconCache = new HashMap<>();
+            for (FileTreeNode node : nodes) {
+                if (disposed) {
+                    return;
+                }
+                node.icon = iconCache.computeIfAbsent(node.file.getFileType(), FileType::getIcon);
+            }
+            tree.repaint();
+
+            ToIntFunction<VirtualFile> counter = tokenCounter;
+            if (counter == null) {
+                return;
+            }
+            for (int start = 0; start < nodes.size(); start += STATS_BATCH_SIZE) {
+                int end = Math.min(nodes.size(), start + STATS_BATCH_SIZE);
+                Map<VirtualFile, Integer> counts = new HashMap<>();
+                for (int i = start; i < end; i++) {
+                    if (disposed) {
+                        return;
+                    }
+                    // 二进制文件和超过大小限制的文件由统计方法跳过, 返回负数, 只显示大小
+                    VirtualFile file = nodes.get(i).file;
+                    counts.put(file, counter.applyAsInt(file));
+                }
+                EdtExecutor.invokeLater(() -> updateTokenCounts(counts.keySet(), file -> counts.getOrDefault(file, -1)));
+            }
+            PerformanceLogger.logTime("fileStats (" + nodes.size() + " files)", t0);
+        });
+    }
+
+    /**
+     * 用统计或生成后得到的 Tokens 更新文件和上层目录的显示, 只在 EDT 调用
+     *
+     * @param files 刚统计或生成过的文件
+     * @param tokenCounts 文件在 Prompt 中占用的 Tokens, 未知时返回负数, 此时保留原来的显示
+     */
+    public void updateTokenCounts(@NotNull Collection<VirtualFile> files, @NotNull ToIntFunction<VirtualFile> tokenCounts) {
+        if (disposed) {
+            return;
+        }
+        boolean changed = false;
+        for (VirtualFile file : files) {
+            FileTreeNode node = fileNodesByPath.get(file.getPath());
+            int tokens = node == null ? -1 : tokenCounts.applyAsInt(file);
+            if (tokens < 0 || tokens == node.tokenCount) {
+                continue;
+            }
+            boolean counted = node.tokenCount >= 0;
+            int delta = tokens - Math.max(0, node.tokenCount);
+            node.tokenCount = tokens;
+            node.statsText = null;
+            for (FolderTreeNode folder = node.parent; folder != null; folder = folder.parent) {
+                folder.tokenCount += delta;
+                if (!counted) {
+                    folder.countedFileCount++;
+                }
+                folder.statsText = null;
+            }
+            changed = true;
+        }
+        if (changed) {
+            // 只有注释文字变化, 行高固定, 重绘即可
+            tree.repaint();
+        }
+    }
+
+    /**
+     * 停止后台统计并关闭线程, 对话框关闭时调用
+     */
+    public void dispose() {
+        disposed = true;
+        filterScheduler.dispose();
+        statsExecutor.shutdown();
+    }
+
+    // 大小与 Tokens 的简短显示, 如 "12.3 KB · 3.1k tokens"
+    private static String formatStats(long length, long tokens, boolean complete) {
+        StringBuilder text = new StringBuilder("  ").append(StringUtil.formatFileSize(length));
+        if (tokens > 0 || complete) {
+            text.append(" · ").append(formatTokens(tokens)).append(complete ? "" : "+").append(" tokens");
+        }
+        return text.toString();
+    }
+
+    private static String formatTokens(long tokens) {
+        if (tokens < 1000) {
+            return String.valueOf(tokens);
+        }
+        if (tokens < 1_000_000) {
+            return String.format("%.1fk", tokens / 1000.0);
+        }
+        return String.format("%.1fM", tokens / 1_000_000.0);
+    }
+
+    private static class PathEntry {
+        final String path;
+        final VirtualFile file;
+
+        PathEntry(String path, VirtualFile file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
+    // 目录节点, 子节点在第一次被访问 (通常是展开) 时才创建; 过滤时只暴露可见的子节点
+    private class FolderCheckedTreeNode extends CheckedTreeNode {
+        private boolean childrenLoaded;
+        private List<TreeNode> filteredChildren;
+        private int filteredVersion = -1;
+        // 过滤条件变化期间, 树最后一次得知的可见子节点; 通知完移除和插入之前固定返回它
+        private List<TreeNode> shownChildren;
+
+        FolderCheckedTreeNode(FolderTreeNode folder) {
+            super(folder);
+            folder.treeNode = this;
+        }
+
+        private FolderTreeNode folder() {
+            return (FolderTreeNode) getUserObject();
+        }
+
+        private void loadChildren() {
+            if (childrenLoaded) {
+                return;
+            }
+            childrenLoaded = true;
+            // add 会经过过滤后的 getChildCount, 这里按全部子节点的位置插入
+            for (Object child : folder().children) {
+                insert(child instanceof FolderTreeNode
+                    ? new FolderCheckedTreeNode((FolderTreeNode) child)
+                    : new FileCheckedTreeNode((FileTreeNode) child), super.getChildCount());
+            }
+        }
+
+        /**
+         * 数据节点属于给定集合的子节点位置, 升序, 用于 nodesWereInserted
+         */
+        private int[] indicesOf(Set<Object> userObjects) {
+            int[] indices = new int[super.getChildCount()];
+            int count = 0;
+            for (int i = 0; i < super.getChildCount(); i++) {
+                if (userObjects.contains(((CheckedTreeNode) super.getChildAt(i)).getUserObject())) {
+                    indices[count++] = i;
+                }
+            }
+            return Arrays.copyOf(indices, count);
+        }
+
+        /**
+         * 过滤时的可见子节点, 按过滤版本缓存; 未过滤时返回 null, 直接使用全部子节点
+         */
+        private List<TreeNode> visibleChildren() {
+            loadChildren();
+            if (shownChildren != null) {
+                return shownChildren;
+            }
+            if (filterMatches == null) {
+                return null;
+            }
+            if (filteredVersion != filterVersion) {
+                filteredVersion = filterVersion;
+                filteredChildren = new ArrayList<>();
+                for (int i = 0; i < super.getChildCount(); i++) {
+                    TreeNode child = super.getChildAt(i);
+                    Object userObject = ((CheckedTreeNode) child).getUserObject();
+                    boolean visible = userObject instanceof FolderTreeNode
+                        ? ((FolderTreeNode) userObject).filteredFileCount > 0
+                        : filterMatches.get(((FileTreeNode) userObject).index);
+                    if (visible) {
+                        filteredChildren.add(child);
+                    }
+                }
+            }
+            return filteredChildren;
+        }
+
+        /**
+         * 固定当前的可见子节点, 过滤条件变化后由 {@link #publishVisibleChildren} 通知差异
+         */
+        private void pinVisibleChildren() {
+            List<TreeNode> visible = visibleChildren();
+            shownChildren = new ArrayList<>(visible != null ? visible : Collections.list(super.children()));
+        }
+
+        /**
+         * 把固定的可见子节点换成新的过滤结果, 依次通知移除和插入的子节点; 保留的子节点不受影响,
+         * 其展开状态得以保留
+         *
+         * @return 新出现的目录子节点
+         */
+        private List<FolderCheckedTreeNode> publishVisibleChildren(DefaultTreeModel model) {
+            List<TreeNode> before = shownChildren;
+            shownChildren = null;
+            List<TreeNode> visible = visibleChildren();
+            List<TreeNode> after = visible != null ? visible : Collections.list(super.children());
+            Set<TreeNode> beforeSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            beforeSet.addAll(before);
+            Set<TreeNode> afterSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            afterSet.addAll(after);
+
+            // 1. 移除: 通知期间可见子节点为两次结果的交集
+            int[] removedIndices = new int[before.size()];
+            List<TreeNode> removed = new ArrayList<>();
+            List<TreeNode> kept = new ArrayList<>(before.size());
+            for (int i = 0; i < before.size(); i++) {
+                TreeNode child = before.get(i);
+                if (afterSet.contains(child)) {
+                    kept.add(child);
+                } else {
+                    removedIndices[removed.size()] = i;
+                    removed.add(child);
+                }
+            }
+            if (!removed.isEmpty()) {
+                shownChildren = kept;
+                model.nodesWereRemoved(this, Arrays.copyOf(removedIndices, removed.size()), removed.toArray());
+                shownChildren = null;
+            }
+
+            // 2. 插入
+            int[] insertedIndices = new int[after.size()];
+            int insertedCount = 0;
+            List<FolderCheckedTreeNode> insertedFolders = new ArrayList<>();
+            for (int i = 0; i < after.size(); i++) {
+                TreeNode child = after.get(i);
+                if (!beforeSet.contains(child)) {
+                    insertedIndices[insertedCount++] = i;
+                    if (child instanceof FolderCheckedTreeNode) {
+                        insertedFolders.add((FolderCheckedTreeNode) child);
+                    }
+                }
+            }
+            if (insertedCount > 0) {
+                model.nodesWereInserted(this, Arrays.copyOf(insertedIndices, insertedCount));
+            }
+            return insertedFolders;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
+        @Override
+        public int getChildCount() {
+            List<TreeNode> visible = visibleChildren();
+            return visible == null ? super.getChildCount() : visible.size();
+        }
 
-        String folderName = getLastPathComponent(parentPath);
-        CheckedTreeNode parentNode = new CheckedTreeNode(new FolderTreeNode(folderName));
-        String grandParentPath = getParentPath(parentPath);
-        CheckedTreeNode grandParentNode = nodeCache.get(grandParentPath);
-        grandParentNode.add(parentNode);
-        nodeCache.put(parentPath, parentNode);
+        @Override
+        public TreeNode getChildAt(int index) {
+            List<TreeNode> visible = visibleChildren();
+            return visible == null ? super.getChildAt(index) : visible.get(index);
+        }
+
+        @Override
+        public int getIndex(TreeNode node) {
+            List<TreeNode> visible = visibleChildren();
+            return visible == null ? super.getIndex(node) : visible.indexOf(node);
+        }
+
+        @Override
+        public Enumeration<TreeNode> children() {
+            List<TreeNode> visible = visibleChildren();
+            return visible == null ? super.children() : Collections.enumeration(visible);
+        }
+
+        @Override
+        public boolean isChecked() {
+            return getFolderState(folder()) == ThreeStateCheckBox.State.SELECTED;
+        }
+
+        @Override
+        public void setChecked(boolean checked) {
+            setFolderChecked(folder(), checked);
+        }
+    }
+
+    // 文件节点, 勾选状态保存在 selectionModel 中
+    private class FileCheckedTreeNode extends CheckedTreeNode {
+        FileCheckedTreeNode(FileTreeNode fileTreeNode) {
+            super(fileTreeNode);
+        }
+
+        @Override
+        public boolean isChecked() {
+            return selectionModel.isSelected(((FileTreeNode) getUserObject()).index);
+        }
+
+        @Override
+        public void setChecked(boolean checked) {
+            FileTreeNode fileNode = (FileTreeNode) getUserObject();
+            if (selectionModel.setSelected(fileNode.index, checked)) {
+                updateParentNodesState(fileNode.parent, checked ? 1 : -1);
+            }
+        }
     }
 
     // 自定义树节点渲染器
-    private static class FileTreeCellRenderer extends CheckboxTree.CheckboxTreeCellRenderer {
+    private class FileTreeCellRenderer extends CheckboxTree.CheckboxTreeCellRenderer {
+        FileTreeCellRenderer() {
+            // 不让基类递归子节点计算部分选中状态, 目录状态直接取自节点上的计数
+            super(true, false);
+        }
+
         @Override
         public void customizeRenderer(JTree tree, Object value, boolean selected, boolean expanded, boolean leaf, int row, boolean hasFocus) {
             if (!(value instanceof CheckedTreeNode))
@@ -146,55 +737,136 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
             Object userObject = node.getUserObject();
 
             if (userObject instanceof FileTreeNode) {
+                // 文字和图标都已预先计算, 绘制时不访问文件类型或 PSI
                 FileTreeNode fileNode = (FileTreeNode) userObject;
                 getTextRenderer().append(fileNode.getName(), SimpleTextAttributes.REGULAR_ATTRIBUTES);
+                if (fileNode.isOverLimit()) {
+                    getTextRenderer().append(" (超出大小限制)", SimpleTextAttributes.GRAYED_ATTRIBUTES);
+                }
+                if (fileNode.statsText == null) {
+                    fileNode.statsText = formatStats(fileNode.length, Math.max(0, fileNode.tokenCount), fileNode.tokenCount >= 0);
+                }
+                getTextRenderer().append(fileNode.statsText, SimpleTextAttributes.GRAYED_SMALL_ATTRIBUTES);
                 getTextRenderer().setIcon(fileNode.getIcon());
             } else if (userObject instanceof FolderTreeNode) {
                 FolderTreeNode folderNode = (FolderTreeNode) userObject;
+                if (getCheckbox() instanceof ThreeStateCheckBox) {
+                    ((ThreeStateCheckBox) getCheckbox()).setState(getFolderState(folderNode));
+                }
                 getTextRenderer().append(folderNode.getName(), SimpleTextAttributes.REGULAR_ATTRIBUTES);
-                getTextRenderer().setIcon(expanded ? AllIcons.Nodes.Folder : AllIcons.Nodes.Folder);
+                if (folderNode.statsText == null) {
+                    folderNode.statsText = formatStats(folderNode.totalLength, folderNode.tokenCount,
+                        folderNode.countedFileCount == folderNode.getFileCount());
+                }
+                getTextRenderer().append(folderNode.statsText, SimpleTextAttributes.GRAYED_SMALL_ATTRIBUTES);
+                getTextRenderer().setIcon(AllIcons.Nodes.Folder);
             }
         }
     }
 
     // 文件节点数据类
     public static class FileTreeNode {
-        private final PsiFile file;
+        private final VirtualFile file;
         private final boolean isLargeFile;
-
-        public FileTreeNode(PsiFile file, boolean isLargeFile) {
+        // 显示名称, 创建时拼接一次
+        private final String name;
+        // 文件类型图标, 由后台线程确定文件类型后写入, 之前显示通用图标
+        private volatile Icon icon;
+        // 大小与 Tokens 的显示文字, 首次绘制时生成, Tokens 更新后清空
+        private String statsText;
+        // 在选择模型中的序号, 文件增加时按树的顺序重新编号
+        private int index;
+        private FolderTreeNode parent;
+        // 预检时超出内容大小限制, 生成时不会读取
+        private boolean overLimit;
+        // 文件大小 (字节), 建树时读取
+        private long length;
+        // 在 Prompt 中占用的 Tokens, 由后台统计或生成后写入; 尚未统计或不统计 (二进制、超出大小) 时为 -1, 只显示大小
+        private int tokenCount = -1;
+
+        public FileTreeNode(VirtualFile file, boolean isLargeFile, int index) {
             this.file = file;
             this.isLargeFile = isLargeFile;
+            this.index = index;
+            this.name = file.getName() + (isLargeFile ? " (too large)" : "");
         }
 
         public String getName() {
-            return file.getName() + (isLargeFile ? " (too large)" : "");
+            return name;
         }
 
         public Icon getIcon() {
-            return file.getIcon(0);
+            Icon fileIcon = icon;
+            return fileIcon != null ? fileIcon : AllIcons.FileTypes.Any_type;
         }
 
-        public PsiFile getFile() {
+        public VirtualFile getFile() {
             return file;
         }
 
         public boolean isLargeFile() {
             return isLargeFile;
         }
+
+        public boolean isOverLimit() {
+            return overLimit;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getTokenCount() {
+            return tokenCount;
+        }
     }
 
     // 文件夹节点数据类
     public static class FolderTreeNode {
         private final String name;
-
-        public FolderTreeNode(String name) {
+        private final FolderTreeNode parent;
+        // 子目录 (FolderTreeNode) 和文件 (FileTreeNode), 按路径顺序
+        private final List<Object> children = new ArrayList<>();
+        // 子树中文件的序号范围 [fileStart, fileEnd), 路径排序后连续
+        private int fileStart;
+        private int fileEnd;
+        // 子树中已选中的文件数, 勾选变化时沿父节点路径增量更新
+        private int checkedFileCount;
+        // 子树中匹配过滤条件的文件数, 仅在过滤时有效
+        private int filteredFileCount;
+        // 子树中文件的总大小, 建树时汇总
+        private long totalLength;
+        // 子树中已统计文件的 Tokens 合计, 以及已统计的文件数
+        private long tokenCount;
+        private int countedFileCount;
+        // 大小与 Tokens 的显示文字, 首次绘制时生成, 计数变化后清空
+        private String statsText;
+        // 已创建的 Swing 节点, 目录未被访问过时为 null
+        private CheckedTreeNode treeNode;
+
+        public FolderTreeNode(String name, FolderTreeNode parent) {
             this.name = name;
+            this.parent = parent;
         }
 
         public String getName() {
             return name;
         }
+
+        public int getFileCount() {
+            return fileEnd - fileStart;
+        }
+
+        public int getCheckedFileCount() {
+            return checkedFileCount;
+        }
+
+        public ThreeStateCheckBox.State getState() {
+            if (checkedFileCount == 0) {
+                return ThreeStateCheckBox.State.NOT_SELECTED;
+            }
+            return checkedFileCount == getFileCount() ? ThreeStateCheckBox.State.SELECTED : ThreeStateCheckBox.State.DONT_CARE;
+        }
     }
 
     // 工具方法
@@ -216,37 +888,59 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
         return lastSeparator >= 0 ? path.substring(lastSeparator + 1) : path;
     }
 
-    // 获取选中的文件列表
-    public List<PsiFile> getSelectedFiles() {
-        List<PsiFile> selectedFiles = new ArrayList<>();
-        CheckedTreeNode root = (CheckedTreeNode) tree.getModel()
-            .getRoot();
-        collectSelectedFiles(root, selectedFiles);
-        return selectedFiles;
+    /**
+     * 标记超出内容大小限制的文件, 只更新节点状态并重绘, 不重建树
+     *
+     * @param overLimitFiles 预检得到的超出限制的文件
+     */
+    public void markOverLimitFiles(Collection<VirtualFile> overLimitFiles) {
+        Set<VirtualFile> overLimit = new HashSet<>(overLimitFiles);
+        boolean changed = false;
+        for (FileTreeNode fileNode : fileNodes) {
+            boolean marked = overLimit.contains(fileNode.getFile());
+            if (fileNode.overLimit != marked) {
+                fileNode.overLimit = marked;
+                changed = true;
+            }
+        }
+        if (changed) {
+            tree.repaint();
+        }
     }
 
-    private void collectSelectedFiles(CheckedTreeNode node, List<PsiFile> selectedFiles) {
-        PerformanceLogger.traceNode(node, node.isChecked(), "collectSelectedFiles ...");
-        if (node.isLeaf() && node.isChecked()) {
-            if (!node.isEnabled() && node.isChecked()) {
-                node.setChecked(false);
-                PerformanceLogger.traceNode(node, true, "collectSelectedFiles:数据不正确!");
-                return;
-            }
-            Object userObject = node.getUserObject();
-            if (userObject instanceof FileTreeNode) {
-                selectedFiles.add(((FileTreeNode) userObject).getFile());
-            }
+    // 获取选中的文件列表, 按树中的顺序
+    public List<VirtualFile> getSelectedFiles() {
+        return selectionModel.getSelectedFiles();
+    }
+
+    /**
+     * 当前选择的快照, 用于与上次生成时的选择比较
+     */
+    public FileSelectionModel.Snapshot getSelectionSnapshot() {
+        return selectionModel.snapshot();
+    }
+
+    // 撤销/重做选择, 只需按恢复后的状态重新计算目录计数
+    public void undoSelection() {
+        if (selectionModel.undo()) {
+            applyRestoredSelection();
         }
+    }
 
-        for (int i = 0; i < node.getChildCount(); i++) {
-            if (node.getChildAt(i) instanceof CheckedTreeNode) {
-                collectSelectedFiles((CheckedTreeNode) node.getChildAt(i), selectedFiles);
-            }
+    public void redoSelection() {
+        if (selectionModel.redo()) {
+            applyRestoredSelection();
         }
     }
 
-    // 展开/折叠方法
+    private void applyRestoredSelection() {
+        recountCheckedFiles();
+        tree.repaint();
+        updateCallback();
+        updateToolbarButtonState();
+    }
+
+    // 展开/折叠方法, 展开全部会创建所有节点, 只在用户明确操作时执行
     public void expandAll() {
         TreeUtil.expandAll(tree);
     }
@@ -255,6 +949,28 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
         TreeUtil.collapseAll(tree, 1);
     }
 
+    private void expandInitialLevels() {
+        expandLevels(Collections.singletonList(new TreePath(rootFolder.treeNode)));
+    }
+
+    /**
+     * 从给定目录开始按层展开, 可见行数达到 {@link #INITIAL_VISIBLE_ROWS} 后停止, 只创建可见部分的节点
+     */
+    private void expandLevels(Collection<TreePath> paths) {
+        Deque<TreePath> queue = new ArrayDeque<>(paths);
+        while (!queue.isEmpty() && tree.getRowCount() < INITIAL_VISIBLE_ROWS) {
+            TreePath path = queue.poll();
+            tree.expandPath(path);
+            CheckedTreeNode node = (CheckedTreeNode) path.getLastPathComponent();
+            for (int i = 0; i < node.getChildCount(); i++) {
+                TreeNode child = node.getChildAt(i);
+                if (child instanceof FolderCheckedTreeNode) {
+                    queue.add(path.pathByAddingChild(child));
+                }
+            }
+        }
+    }
+
     // 全选/全不选方法
     public void selectAll() {
         setNodesChecked(true);
@@ -264,131 +980,77 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
         setNodesChecked(false);
     }
 
-    // 在 setNodesChecked 方法中添加延迟合并
     private void setNodesChecked(boolean checked) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                isBatchUpdate = true;
-                pendingCallbackUpdate = true;
-                CheckedTreeNode root = (CheckedTreeNode) tree.getModel().getRoot();
-                setNodeChecked(root, checked);
-                updateAllNodesState(root);
-                ((DefaultTreeModel) tree.getModel()).nodeChanged(root);
-            } finally {
-                isBatchUpdate = false;
-                if (pendingCallbackUpdate) {
-                    pendingCallbackUpdate = false;
-                    updateCallback();
-                    updateToolbarButtonState();
-                }
-            }
-        });
+        setAllChecked(checked);
+        // 行内容 (勾选状态) 变化, 结构不变, 重绘即可
+        tree.repaint();
+        updateCallback();
+        updateToolbarButtonState();
     }
 
-    private void setNodeChecked(CheckedTreeNode node, boolean checked) {
-        if (!node.isLeaf()) {
-            PerformanceLogger.traceNode(node, true);
-            node.setEnabled(true);
-        } else {
-            if (!node.isEnabled()) {
-                PerformanceLogger.traceNode(node, false);
-                node.setChecked(false);
-            } else {
-                PerformanceLogger.traceNode(node, checked);
-                node.setChecked(checked);
+    private void setAllChecked(boolean checked) {
+        if (filterMatches != null) {
+            // 过滤时只修改可见的文件
+            for (int i = filterMatches.nextSetBit(0); i >= 0; i = filterMatches.nextSetBit(i + 1)) {
+                selectionModel.setSelected(i, checked);
             }
+            recountCheckedFiles();
+            return;
         }
-
-        // 只处理子节点，不处理父节点
-        for (int i = 0; i < node.getChildCount(); i++) {
-            if (node.getChildAt(i) instanceof CheckedTreeNode) {
-                setNodeChecked((CheckedTreeNode) node.getChildAt(i), checked);
-            }
+        selectionModel.setAll(checked);
+        for (FolderTreeNode folder : folders) {
+            folder.checkedFileCount = checked ? folder.getFileCount() : 0;
         }
     }
 
-    // 增强批量操作处理逻辑
-    private void handleDirectoryNodeStateChange(CheckedTreeNode node, boolean checked) {
-        try {
-            isBatchUpdate = true;
-            pendingCallbackUpdate = true;
-
-            // 使用 SwingUtilities 合并 UI 更新
-            SwingUtilities.invokeLater(() -> {
-                try {
-                    setNodeChecked(node, checked);
-                    updateParentNodesState(node);
-                    ((DefaultTreeModel) tree.getModel()).nodeStructureChanged(node);
-                } finally {
-                    isBatchUpdate = false;
-                    if (pendingCallbackUpdate) {
-                        pendingCallbackUpdate = false;
-                        updateCallback();
-                        updateToolbarButtonState();
-                    }
+    /**
+     * 勾选或取消目录下的所有文件: 在选择模型中按范围批量设置, 子目录的计数直接置为全选或 0,
+     * 再把变化量累加到上层目录, 不需要创建或遍历 Swing 节点
+     */
+    private void setFolderChecked(FolderTreeNode folder, boolean checked) {
+        if (filterMatches != null) {
+            // 过滤时只修改目录下可见的文件
+            for (int i = filterMatches.nextSetBit(folder.fileStart); i >= 0 && i < folder.fileEnd;
+                 i = filterMatches.nextSetBit(i + 1)) {
+                if (selectionModel.setSelected(i, checked)) {
+                    updateParentNodesState(fileNodes.get(i).parent, checked ? 1 : -1);
                 }
-            });
-        } catch (Exception e) {
-            LOG.error("Directory node state change failed", e);
+            }
+            return;
         }
+        int before = folder.checkedFileCount;
+        selectionModel.setRange(folder.fileStart, folder.fileEnd, checked);
+        setSubfolderCounts(folder, checked);
+        updateParentNodesState(folder.parent, folder.checkedFileCount - before);
     }
 
-    // 添加新方法：更新父节点状态
-    private void updateParentNodesState(CheckedTreeNode node) {
-        CheckedTreeNode parent = (CheckedTreeNode) node.getParent();
-        while (parent != null && parent != tree.getModel()
-            .getRoot()) {
-            updateNodeCheckState(parent);
-            ((DefaultTreeModel) tree.getModel()).nodeChanged(parent);
-            parent = (CheckedTreeNode) parent.getParent();
+    private static void setSubfolderCounts(FolderTreeNode folder, boolean checked) {
+        folder.checkedFileCount = checked ? folder.getFileCount() : 0;
+        for (Object child : folder.children) {
+            if (child instanceof FolderTreeNode) {
+                setSubfolderCounts((FolderTreeNode) child, checked);
+            }
         }
     }
 
-    // 修改更新节点的选中状态的方法
-    private void updateNodeCheckState(CheckedTreeNode node) {
-        int childCount = node.getChildCount();
-        if (childCount == 0) {
+    /**
+     * 把选中数量的变化沿父节点路径累加, 复杂度为树的深度, 不扫描兄弟节点
+     *
+     * @param folder 发生变化的节点所在的目录
+     * @param delta 选中文件数的变化
+     */
+    private void updateParentNodesState(FolderTreeNode folder, int delta) {
+        if (delta == 0) {
             return;
         }
-
-        int checkedCount = 0;
-        for (int i = 0; i < childCount; i++) {
-            CheckedTreeNode child = (CheckedTreeNode) node.getChildAt(i);
-            if (child.isChecked()) {
-                checkedCount++;
-            }
-        }
-
-        // 更新节点状态
-        if (checkedCount == childCount) {
-            if (node.isEnabled()) {
-                PerformanceLogger.traceNode(node, true);
-                node.setChecked(true);
-            } else {
-                PerformanceLogger.traceNode(node, false);
-                node.setChecked(false);
-            }
-        } else {
-            PerformanceLogger.traceNode(node, false);
-            node.setChecked(false);
-        }
-        if (!node.isLeaf()) {
-            node.setEnabled(true);  // 保持节点始终可用
-        }
-    }
-
-    // 添加新方法：更新所有节点状态
-    private void updateAllNodesState(CheckedTreeNode node) {
-        for (int i = 0; i < node.getChildCount(); i++) {
-            CheckedTreeNode child = (CheckedTreeNode) node.getChildAt(i);
-            updateNodeCheckState(child);
-            updateAllNodesState(child);
+        for (FolderTreeNode current = folder; current != null; current = current.parent) {
+            current.checkedFileCount += delta;
         }
     }
 
     // 回调接口
     public interface FileTreeCallback {
-        void onSelectionChanged(List<PsiFile> selectedFiles);
+        void onSelectionChanged(List<VirtualFile> selectedFiles);
     }
 
     public void setCallback(FileTreeCallback callback) {
@@ -396,7 +1058,9 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
     }
 
     private void updateCallback() {
-        if (!isBatchUpdate && callback != null) {
+        // 一次用户操作结束, 记录撤销历史
+        selectionModel.commit();
+        if (callback != null) {
             callback.onSelectionChanged(getSelectedFiles());
         }
     }
@@ -408,11 +1072,32 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
 
     private void updateToolbarButtonState() {
         if (toolbarPanel != null) {
-            List<PsiFile> selectedFiles = getSelectedFiles();
-            toolbarPanel.updateFileSelectionState(!selectedFiles.isEmpty());
+            toolbarPanel.updateFileSelectionState(getSelectedFileCount() > 0);
+            toolbarPanel.updateSelectionHistoryState(selectionModel.canUndo(), selectionModel.canRedo());
         }
     }
 
+    /**
+     * 已选中的文件数, 直接取自选择模型的计数
+     */
+    public int getSelectedFileCount() {
+        return selectionModel.getSelectedCount();
+    }
+
+    /**
+     * 已插入树中的文件数, 加载过程中逐批增加
+     */
+    public int getFileCount() {
+        return fileNodes.size();
+    }
+
+    /**
+     * 文件来源已结束且所有文件都已插入
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
     // 新增：加载选择记录的方法
     public static class LoadSelectionResult {
         private final int totalFiles;      // 历史选择中的文件总数
@@ -432,90 +1117,162 @@ public class FileTreePanel extends JBPanel<FileTreePanel> {
         public List<String> getMissingFiles() {return missingFiles;}
     }
 
+    /**
+     * 按保存的相对路径批量勾选文件, 按完整路径查找文件节点, 全部勾选后一次性重新计算目录计数
+     */
     public LoadSelectionResult loadSelection(List<String> filePaths) {
-        try {
-            isBatchUpdate = true;
-            pendingCallbackUpdate = true;
-
-            // 先取消所有选择
-            unselectAll();
-
-            // 获取项目根路径
-            String projectPath = project.getBasePath();
-            if (projectPath == null) {
-                return new LoadSelectionResult(filePaths.size(), 0, new ArrayList<>(filePaths));
-            }
-
-            List<String> missingFiles = new ArrayList<>();
-            int loadedCount = 0;
-            Set<CheckedTreeNode> parentsToExpand = new HashSet<>();
-
-            // 选中指定的文件
-            CheckedTreeNode root = (CheckedTreeNode) tree.getModel()
-                .getRoot();
-            for (String relativePath : filePaths) {
-                // 转换为完整路径
-                String fullPath = projectPath + "/" + relativePath;
-                if (selectNodeByPath(root, fullPath, parentsToExpand)) {
-                    loadedCount++;
-                } else {
-                    missingFiles.add(relativePath);
-                }
-            }
+        // 获取项目根路径
+        String projectPath = project.getBasePath();
+        if (projectPath == null) {
+            return new LoadSelectionResult(filePaths.size(), 0, new ArrayList<>(filePaths));
+        }
+
+        // 先取消所有选择
+        selectionModel.setAll(false);
 
-            // 更新树和按钮状态
-            ((DefaultTreeModel) tree.getModel()).nodeStructureChanged(root);
+        List<String> missingFiles = new ArrayList<>();
+        int loadedCount = 0;
+        Set<FolderTreeNode> parentsToExpand = new LinkedHashSet<>();
 
-            // 展开所有已选中文件的父节点
-            for (CheckedTreeNode node : parentsToExpand) {
-                TreePath path = new TreePath(((DefaultTreeModel) tree.getModel()).getPathToRoot(node));
-                tree.expandPath(path);
+        // 选中指定的文件
+        for (String relativePath : filePaths) {
+            // 转换为完整路径
+            FileTreeNode fileNode = fileNodesByPath.get(projectPath + "/" + relativePath);
+            if (fileNode == null) {
+                missingFiles.add(relativePath);
+                continue;
             }
+            selectionModel.setSelected(fileNode.index, true);
+            loadedCount++;
 
-            return new LoadSelectionResult(filePaths.size(), loadedCount, missingFiles);
-        } finally {
-            isBatchUpdate = false;
-            if (pendingCallbackUpdate) {
-                pendingCallbackUpdate = false;
-                updateCallback();
-                updateToolbarButtonState();
+            // 记录所有父节点，以便后续展开; 父节点已记录时其上层也已记录
+            FolderTreeNode parent = fileNode.parent;
+            while (parent != null && parent != rootFolder && parentsToExpand.add(parent)) {
+                parent = parent.parent;
             }
         }
+        recountCheckedFiles();
+
+        // 更新树和按钮状态
+        DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+        model.nodeStructureChanged(rootFolder.treeNode);
+
+        // 展开所有已选中文件的父节点, 只创建这些路径上的节点
+        for (FolderTreeNode folder : parentsToExpand) {
+            tree.expandPath(new TreePath(model.getPathToRoot(getTreeNode(folder))));
+        }
+
+        updateCallback();
+        updateToolbarButtonState();
+        return new LoadSelectionResult(filePaths.size(), loadedCount, missingFiles);
     }
 
-    private boolean selectNodeByPath(CheckedTreeNode node, String targetPath, Set<CheckedTreeNode> parentsToExpand) {
-        Object userObject = node.getUserObject();
-        if (userObject instanceof FileTreeNode) {
-            FileTreeNode fileNode = (FileTreeNode) userObject;
-            if (fileNode.getFile()
-                .getVirtualFile()
-                .getPath()
-                .equals(targetPath)) {
-                if (node.isEnabled()) {
-                    node.setChecked(true);
-                } else {
-                    node.setChecked(false);
-                }
-                // 记录所有父节点，以便后续展开
-                CheckedTreeNode parent = (CheckedTreeNode) node.getParent();
-                while (parent != null && parent != tree.getModel()
-                    .getRoot()) {
-                    parentsToExpand.add(parent);
-                    parent = (CheckedTreeNode) parent.getParent();
-                }
-                updateParentNodesState(node);
-                return true;
+    /**
+     * 返回目录对应的 Swing 节点, 尚未创建时依次加载上层目录的子节点
+     */
+    private CheckedTreeNode getTreeNode(FolderTreeNode folder) {
+        if (folder.treeNode == null) {
+            getTreeNode(folder.parent).getChildCount();
+        }
+        return folder.treeNode;
+    }
+
+    /**
+     * 目录的勾选状态; 过滤时只统计可见的文件, 与勾选目录时修改的范围一致
+     */
+    private ThreeStateCheckBox.State getFolderState(FolderTreeNode folder) {
+        if (filterMatches == null) {
+            return folder.getState();
+        }
+        int checked = 0;
+        for (int i = filterMatches.nextSetBit(folder.fileStart); i >= 0 && i < folder.fileEnd;
+             i = filterMatches.nextSetBit(i + 1)) {
+            if (selectionModel.isSelected(i)) {
+                checked++;
             }
         }
+        if (checked == 0) {
+            return ThreeStateCheckBox.State.NOT_SELECTED;
+        }
+        return checked == folder.filteredFileCount ? ThreeStateCheckBox.State.SELECTED : ThreeStateCheckBox.State.DONT_CARE;
+    }
 
-        // 递归搜索子节点
-        for (int i = 0; i < node.getChildCount(); i++) {
-            if (node.getChildAt(i) instanceof CheckedTreeNode) {
-                if (selectNodeByPath((CheckedTreeNode) node.getChildAt(i), targetPath, parentsToExpand)) {
-                    return true;
+    /**
+     * 按过滤文本收窄树: 查询路径索引, 沿父目录累加匹配数, 然后只通知可见文件数变化的已展开目录;
+     * 已创建的 Swing 节点保持不变, 只是可见的子节点不同, 保留下来的目录保持原来的展开状态
+     */
+    private void applyFilter(String text) {
+        long t0 = System.currentTimeMillis();
+        BitSet matches = matchFilter(text);
+        if (matches == null && filterMatches == null) {
+            return;
+        }
+
+        // 1. 记录变化前各目录的可见文件数, 固定已展开目录的可见子节点
+        int[] visibleBefore = new int[folders.size()];
+        for (int i = 0; i < visibleBefore.length; i++) {
+            visibleBefore[i] = visibleFileCount(folders.get(i));
+        }
+        TreePath rootPath = new TreePath(rootFolder.treeNode);
+        List<TreePath> expandedPaths = new ArrayList<>();
+        Enumeration<TreePath> expanded = tree.getExpandedDescendants(rootPath);
+        if (expanded != null) {
+            expandedPaths.addAll(Collections.list(expanded));
+        }
+        // 先通知上层目录, 下层目录被移除时不再通知
+        expandedPaths.sort(Comparator.comparingInt(TreePath::getPathCount));
+        for (TreePath path : expandedPaths) {
+            ((FolderCheckedTreeNode) path.getLastPathComponent()).pinVisibleChildren();
+        }
+
+        // 2. 更新匹配结果和目录计数
+        filterMatches = matches;
+        filterVersion++;
+        if (matches != null) {
+            for (FolderTreeNode folder : folders) {
+                folder.filteredFileCount = 0;
+            }
+            for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                for (FolderTreeNode folder = fileNodes.get(i).parent; folder != null; folder = folder.parent) {
+                    folder.filteredFileCount++;
                 }
             }
         }
-        return false;
+        Set<FolderTreeNode> changedFolders = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < visibleBefore.length; i++) {
+            if (visibleFileCount(folders.get(i)) != visibleBefore[i]) {
+                changedFolders.add(folders.get(i));
+            }
+        }
+
+        // 3. 只通知可见文件数变化且仍然展开的目录, 新出现的目录按可见行数展开
+        DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+        List<TreePath> newFolders = new ArrayList<>();
+        for (TreePath path : expandedPaths) {
+            FolderCheckedTreeNode treeNode = (FolderCheckedTreeNode) path.getLastPathComponent();
+            if (!changedFolders.contains(treeNode.folder()) || !tree.isExpanded(path)) {
+                treeNode.shownChildren = null;
+                continue;
+            }
+            for (FolderCheckedTreeNode child : treeNode.publishVisibleChildren(model)) {
+                newFolders.add(path.pathByAddingChild(child));
+            }
+        }
+        expandLevels(newFolders);
+        PerformanceLogger.logTime("filterTree (" + changedFolders.size() + " folders changed)", t0);
+    }
+
+    // 目录当前可见的文件数, 未过滤时为全部文件数
+    private int visibleFileCount(FolderTreeNode folder) {
+        return filterMatches == null ? folder.fileEnd - folder.fileStart : folder.filteredFileCount;
+    }
+
+    /**
+     * 按选择模型重新计算所有目录的计数, 批量修改选择后调用一次
+     */
+    private void recountCheckedFiles() {
+        for (FolderTreeNode folder : folders) {
+            folder.checkedFileCount = selectionModel.countSelected(folder.fileStart, folder.fileEnd);
+        }
     }
-} 
\ No newline at end of file
+}
@@ -1,22 +1,46 @@
 package com.github.codebase2prompt.ui;
 
+import com.github.codebase2prompt.core.ContentMinifier;
+import com.github.codebase2prompt.core.FolderStructureRenderer;
+import com.github.codebase2prompt.core.MatchRanges;
+import com.github.codebase2prompt.core.PreflightResult;
 import com.github.codebase2prompt.core.PromptGenerator;
 import com.github.codebase2prompt.core.TokenCounter;
+import com.github.codebase2prompt.util.CoalescingScheduler;
 import com.github.codebase2prompt.util.PerformanceLogger;
+import com.github.codebase2prompt.util.YieldingReadAction;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
-import com.intellij.psi.PsiFile;
 import com.intellij.ui.components.JBPanel;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.util.ui.JBUI;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import com.github.codebase2prompt.storage.FileSelectionStorage;
+import com.github.codebase2prompt.storage.PromptSettings;
 import com.intellij.openapi.vfs.VirtualFile;
-
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.swing.*;
@@ -32,26 +56,73 @@ import com.intellij.openapi.fileTypes.FileTypes;
 import java.awt.*;
 
 public class PromptGeneratorDialog extends DialogWrapper {
+    private static final Logger LOG = Logger.getInstance(PromptGeneratorDialog.class);
+    // 超过该 Tokens 数量时在状态栏提示拆分
+    private static final int TOKEN_WARNING_THRESHOLD = 128 * 1024;
     private final Project project;
-    private final PsiFile[] psiFiles;
     private JPanel mainPanel;
     private Editor editor;
     private PromptToolbarPanel toolbarPanel;
     private FileTreePanel fileTreePanel;
     private PromptGenerator promptGenerator;
     private JLabel statusLabel;
+    private JProgressBar progressBar;
+    // 当前正在运行的生成任务, 仅在 EDT 上修改
+    private volatile ProgressIndicator currentGeneration;
+    // 最近一次开始生成时的选择, 仅在 EDT 上访问
+    private FileSelectionModel.Snapshot lastGeneratedSelection;
+    // 合并连续的选择变化, 保证同一时刻只有一次生成
+    private final CoalescingScheduler generationScheduler;
+    // 搜索结果中的匹配位置, 由打开对话框的一方在加入文件前写入
+    private final MatchRanges matchRanges = new MatchRanges();
+
+    public PromptGeneratorDialog(Project project, VirtualFile[] files) {
+        this(project);
+        addFiles(Arrays.asList(files));
+        finishLoading();
+    }
 
-    public PromptGeneratorDialog(Project project, PsiFile[] psiFiles) {
+    /**
+     * 打开时文件树为空, 文件由调用方通过 {@link #addFiles} 陆续加入, 来源结束后调用 {@link #finishLoading()}
+     */
+    public PromptGeneratorDialog(Project project) {
         super(project, true); // true means modal dialog
         this.project = project;
-        this.psiFiles = psiFiles;
         this.promptGenerator = new PromptGenerator(project);
+        PromptSettings settings = PromptSettings.getInstance(project);
+        this.promptGenerator.setTokenBudget(settings.getTokenBudget());
+        this.promptGenerator.setSizeLimit(settings.getSizeLimit());
+        this.promptGenerator.setFolderStructureStyle(settings.isCompactFolderStructure()
+            ? FolderStructureRenderer.Style.COMPACT : FolderStructureRenderer.Style.TREE);
+        this.promptGenerator.setMinifyStages(getMinifyStages(settings));
+        this.generationScheduler = new CoalescingScheduler(settings.getSelectionDebounceMs());
 
         init(); // 初始化对话框
         setTitle("Codebase2Prompt - Prompt 内容生成"); // 设置窗口标题
         setSize(800, 600); // 设置窗口大小
     }
 
+    /**
+     * 加入文件, 可在任意线程调用; 只保存 VirtualFile, 不持有 PSI, 文件树分批插入
+     */
+    public void addFiles(Collection<VirtualFile> files) {
+        fileTreePanel.addFiles(files);
+    }
+
+    /**
+     * 搜索结果的匹配位置, 可在任意线程写入; 片段模式下只输出这些位置所在的行
+     */
+    public MatchRanges getMatchRanges() {
+        return matchRanges;
+    }
+
+    /**
+     * 文件来源已结束, 可在任意线程调用
+     */
+    public void finishLoading() {
+        fileTreePanel.finishLoading();
+    }
+
     @Override
     protected @Nullable JComponent createCenterPanel() {
         // 创建主面板
@@ -87,27 +158,16 @@ public class PromptGeneratorDialog extends DialogWrapper {
         // Create toolbar with editor instead of JTextArea
         toolbarPanel = new PromptToolbarPanel(project, editor);
         // 创建文件树面板
-        fileTreePanel = new FileTreePanel(project, psiFiles);
+        fileTreePanel = new FileTreePanel(project);
+
+        // 后台统计的片段进入生成器的缓存, 勾选后生成时直接复用
+        fileTreePanel.setTokenCounter(promptGenerator::countTokens);
 
         // 建立联动关系
         fileTreePanel.setToolbarPanel(toolbarPanel);
 
-        // 先设置文件树的回调
-        fileTreePanel.setCallback(selectedFiles -> {
-            String prompt = promptGenerator.generatePrompt(selectedFiles);
-            // Update editor content instead of JTextArea
-            ApplicationManager.getApplication().runWriteAction(() -> {
-                // 统一处理行分隔符
-                String normalizedText = com.intellij.openapi.util.text.StringUtil.convertLineSeparators(prompt);
-                editor.getDocument().setText(normalizedText);
-            });
-            // Scroll to top
-            editor.getScrollingModel().scrollVertically(0);
-            // 更新状态栏
-            long t0 = System.currentTimeMillis();
-            updateStatusBar(selectedFiles.size(), TokenCounter.estimateTokens(prompt));
-            PerformanceLogger.logTime("estimateTokens", t0);
-        });
+        // 先设置文件树的回调, 生成过程放到后台执行, 避免阻塞 EDT
+        fileTreePanel.setCallback(this::onSelectionChanged);
 
         // 修改工具栏的回调实现
         toolbarPanel.setCallback(new PromptToolbarPanel.ToolbarCallback() {
@@ -131,11 +191,49 @@ public class PromptGeneratorDialog extends DialogWrapper {
                 fileTreePanel.unselectAll();
             }
 
+            @Override
+            public void onUndoSelection() {
+                fileTreePanel.undoSelection();
+            }
+
+            @Override
+            public void onRedoSelection() {
+                fileTreePanel.redoSelection();
+            }
+
             @Override
             public void onSaveSelection() {
                 saveCurrentSelection();
             }
 
+            @Override
+            public void onExportToFile() {
+                exportToFile();
+            }
+
+            @Override
+            public void onTokenBudgetChanged(int tokenBudget) {
+                promptGenerator.setTokenBudget(tokenBudget);
+                requestPromptGeneration(true);
+            }
+
+            @Override
+            public void onFolderStructureStyleChanged(boolean compact) {
+                promptGenerator.setFolderStructureStyle(compact
+                    ? FolderStructureRenderer.Style.COMPACT : FolderStructureRenderer.Style.TREE);
+                requestPromptGeneration(true);
+            }
+
+            @Override
+            public void onSnippetModeChanged(boolean snippetMode) {
+                requestPromptGeneration(true);
+            }
+
+            @Override
+            public boolean hasMatchRanges() {
+                return !matchRanges.isEmpty();
+            }
+
             @Override
             public void onLoadSelection(FileSelectionStorage.FileSelection selection) {
                 FileTreePanel.LoadSelectionResult result = fileTreePanel.loadSelection(selection.getFilePaths());
@@ -209,31 +307,195 @@ public class PromptGeneratorDialog extends DialogWrapper {
         statusLabel.setBorder(JBUI.Borders.empty(3, 5));
         statusPanel.add(statusLabel);
 
+        // 后台生成进度条, 仅在生成过程中显示
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setPreferredSize(new Dimension(150, progressBar.getPreferredSize().height));
+        progressBar.setVisible(false);
+        statusPanel.add(progressBar);
+
         // 设置初始状态
-        updateStatusBar(0, 0);
+        updateStatusBar(0, 0, 0, false);
 
         return statusPanel;
     }
 
+    private static Set<ContentMinifier.Stage> getMinifyStages(PromptSettings settings) {
+        Set<ContentMinifier.Stage> stages = EnumSet.noneOf(ContentMinifier.Stage.class);
+        if (settings.isStripLicenseHeaders()) {
+            stages.add(ContentMinifier.Stage.STRIP_LICENSE_HEADER);
+        }
+        if (settings.isStripComments()) {
+            stages.add(ContentMinifier.Stage.STRIP_COMMENTS);
+        }
+        if (settings.isCollapseImports()) {
+            stages.add(ContentMinifier.Stage.COLLAPSE_IMPORTS);
+        }
+        if (settings.isFoldWhitespace()) {
+            stages.add(ContentMinifier.Stage.FOLD_WHITESPACE);
+        }
+        return stages;
+    }
+
+    /**
+     * 文件树选择变化, 交给调度器合并, 执行时才读取最新的选择
+     */
+    private void onSelectionChanged(List<VirtualFile> selectedFiles) {
+        requestPromptGeneration(false);
+    }
+
+    /**
+     * 请求重新生成: 运行中的旧任务立即取消, 新任务在合并窗口结束且旧任务退出后才开始
+     *
+     * @param force 为 false 时, 选择与上次生成时相同 (如来回勾选同一文件) 则不重新生成
+     */
+    private void requestPromptGeneration(boolean force) {
+        ProgressIndicator previous = currentGeneration;
+        if (previous != null && generationScheduler.isRunning()) {
+            previous.cancel();
+            // 被取消的结果不会写入编辑器, 之后即使选择相同也要重新生成
+            lastGeneratedSelection = null;
+        }
+        generationScheduler.submit(done -> {
+            FileSelectionModel.Snapshot selection = fileTreePanel.getSelectionSnapshot();
+            if (!force && lastGeneratedSelection != null && selection.isSameSelection(lastGeneratedSelection)) {
+                done.run();
+                return;
+            }
+            schedulePromptGeneration(fileTreePanel.getSelectedFiles(), done);
+        });
+    }
+
+    /**
+     * 在后台读操作中生成 Prompt (写操作优先), 只有最新一次的结果会写入编辑器
+     *
+     * @param selectedFiles 选中的文件列表
+     * @param done 任务结束 (完成或取消) 时调用, 通知调度器可以开始下一次生成
+     */
+    private void schedulePromptGeneration(List<VirtualFile> selectedFiles, Runnable done) {
+        // 预检只读取文件元数据, 在读取内容之前就标记超出大小限制的文件
+        PromptSettings settings = PromptSettings.getInstance(project);
+        generationScheduler.setDelay(settings.getSelectionDebounceMs());
+        promptGenerator.setSizeLimit(settings.getSizeLimit());
+        promptGenerator.setMinifyStages(getMinifyStages(settings));
+        promptGenerator.setSnippetMode(settings.isSnippetMode() && !matchRanges.isEmpty() ? matchRanges : null,
+            settings.getSnippetContextLines());
+        PreflightResult preflight = promptGenerator.preflight(selectedFiles);
+        fileTreePanel.markOverLimitFiles(preflight.getOverLimitFiles());
+        updateStatusBar(selectedFiles.size(), preflight.getPredictedTokens(), preflight.getOverLimitCount(), true);
+
+        lastGeneratedSelection = fileTreePanel.getSelectionSnapshot();
+        GenerationIndicator indicator = new GenerationIndicator();
+        currentGeneration = indicator;
+        showProgress(true, 0);
+
+        ModalityState modalityState = ModalityState.stateForComponent(mainPanel);
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                ProgressManager.getInstance().runProcess(() -> {
+                    // 生成结果的行分隔符已统一为 \n, 可直接写入 Document;
+                    // 写操作到来时让出读锁后重新生成, 已读取的文件在片段缓存中, 不会重复读取
+                    String prompt;
+                    try {
+                        prompt = YieldingReadAction.compute(
+                            attempt -> promptGenerator.generatePrompt(selectedFiles, attempt), indicator);
+                    } catch (IOException e) {
+                        // 输出到 StringBuilder 不会抛出 IOException
+                        throw new IllegalStateException(e);
+                    }
+                    indicator.checkCanceled();
+
+                    long t0 = System.currentTimeMillis();
+                    int tokenCount = TokenCounter.estimateTokens(prompt);
+                    PerformanceLogger.logTime("estimateTokens", t0);
+                    indicator.checkCanceled();
+
+                    ApplicationManager.getApplication().invokeLater(
+                        () -> applyPrompt(indicator, selectedFiles, prompt, tokenCount, preflight.getOverLimitCount()), modalityState);
+                }, indicator);
+            } catch (ProcessCanceledException e) {
+                // 已被更新的选择取消, 忽略
+                LOG.debug("Prompt generation cancelled");
+            } finally {
+                ApplicationManager.getApplication().invokeLater(() -> {
+                    if (indicator == currentGeneration) {
+                        showProgress(false, 0);
+                    }
+                }, modalityState);
+                done.run();
+            }
+        });
+    }
+
+    private void applyPrompt(ProgressIndicator indicator, List<VirtualFile> selectedFiles, String prompt, int tokenCount,
+                             int overLimitCount) {
+        // 只接受最新一次生成的结果
+        if (indicator != currentGeneration || indicator.isCanceled() || editor.isDisposed()) {
+            return;
+        }
+        ApplicationManager.getApplication().runWriteAction(() -> editor.getDocument().setText(prompt));
+        // Scroll to top
+        editor.getScrollingModel().scrollVertically(0);
+        // 更新状态栏
+        updateStatusBar(selectedFiles.size(), tokenCount, overLimitCount, false);
+        // 配置变化 (精简、片段模式) 后重新渲染的文件, 以生成结果刷新文件树中的 Tokens
+        fileTreePanel.updateTokenCounts(selectedFiles, promptGenerator::getCachedTokenCount);
+    }
+
+    private void showProgress(boolean visible, int percent) {
+        if (progressBar == null) {
+            return;
+        }
+        progressBar.setValue(percent);
+        progressBar.setVisible(visible);
+    }
+
+    // 将生成进度同步到状态栏进度条
+    private class GenerationIndicator extends ProgressIndicatorBase {
+        private volatile int lastPercent = -1;
+
+        @Override
+        public void setFraction(double fraction) {
+            super.setFraction(fraction);
+            int percent = (int) (fraction * 100);
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                SwingUtilities.invokeLater(() -> {
+                    if (this == currentGeneration) {
+                        showProgress(true, percent);
+                    }
+                });
+            }
+        }
+    }
+
     /**
      * 更新状态栏显示
      *
      * @param fileCount 选中的文件数量
      * @param tokenCount 估算的 Tokens 数量
+     * @param overLimitCount 超出内容大小限制的文件数量
+     * @param predicted 是否为预检得到的预测值 (生成尚未完成)
      */
-    private void updateStatusBar(int fileCount, int tokenCount) {
+    private void updateStatusBar(int fileCount, int tokenCount, int overLimitCount, boolean predicted) {
         StringBuilder status = new StringBuilder();
         status.append("文件数：")
             .append(fileCount);
         status.append("  |  ");
-        // status.append("预计 Tokens 数量：").append(tokenCount);
-        status.append("size：")
+        status.append(TokenCounter.isExact() && !predicted ? "Tokens 数量：" : "预计 Tokens 数量：")
             .append(tokenCount);
 
+        int tokenBudget = PromptSettings.getInstance(project).getTokenBudget();
+        if (tokenBudget > 0) {
+            status.append(" / 预算 ").append(tokenBudget);
+        }
+
         // 如果 Tokens 数量超过一定值，添加警告提示
-        if (tokenCount > 1024 * 1024) {
-            status.append(" ⚠️ size 较大，请注意拆分");
-            // status.append(" ⚠️ Tokens 数量较大，请注意拆分");
+        if (tokenBudget == 0 && tokenCount > TOKEN_WARNING_THRESHOLD) {
+            status.append(" ⚠️ Tokens 数量较大，请注意拆分");
+        }
+
+        if (overLimitCount > 0) {
+            status.append("  |  ⚠️ ").append(overLimitCount).append(" 个文件超出大小限制，已跳过");
         }
 
         statusLabel.setText(status.toString());
@@ -264,7 +526,7 @@ public class PromptGeneratorDialog extends DialogWrapper {
 
     private void saveCurrentSelection() {
         // 获取当前选中的文件列表
-        List<PsiFile> selectedFiles = fileTreePanel.getSelectedFiles();
+        List<VirtualFile> selectedFiles = fileTreePanel.getSelectedFiles();
         if (selectedFiles.isEmpty()) {
             return;
         }
@@ -279,8 +541,7 @@ public class PromptGeneratorDialog extends DialogWrapper {
             // 转换文件列表为相对路径
             List<String> filePaths = selectedFiles.stream()
                 .map(file -> {
-                    VirtualFile vFile = file.getVirtualFile();
-                    String fullPath = vFile.getPath();
+                    String fullPath = file.getPath();
                     String projectPath = project.getBasePath();
                     if (projectPath != null && fullPath.startsWith(projectPath)) {
                         return fullPath.substring(projectPath.length() + 1);
@@ -301,11 +562,87 @@ public class PromptGeneratorDialog extends DialogWrapper {
         }
     }
 
+    /**
+     * 将当前选择的 Prompt 流式导出到文件, 不在内存中保留完整内容
+     */
+    private void exportToFile() {
+        List<VirtualFile> selectedFiles = fileTreePanel.getSelectedFiles();
+        if (selectedFiles.isEmpty()) {
+            return;
+        }
+
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("导出 Prompt", "将生成的 Prompt 保存到文件", "txt", "md");
+        VirtualFileWrapper wrapper = FileChooserFactory.getInstance()
+            .createSaveFileDialog(descriptor, project)
+            .save(null, "prompt.txt");
+        if (wrapper == null) {
+            return;
+        }
+
+        Path target = wrapper.getFile().toPath();
+        ProgressManager.getInstance().run(new Task.Modal(project, "导出 Prompt", true) {
+            // 写入失败的原因, 由 onSuccess 提示; 为 null 且未取消时表示导出成功
+            private IOException failure;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                boolean completed = false;
+                try {
+                    long t0 = System.currentTimeMillis();
+                    // 重新执行时会截断目标文件重新写入
+                    YieldingReadAction.compute(attempt -> {
+                        promptGenerator.writePrompt(selectedFiles, target, attempt);
+                        return null;
+                    }, indicator);
+                    completed = true;
+                    PerformanceLogger.logTime("exportToFile", t0);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    // 失败或取消时删除写了一半的文件
+                    if (!completed) {
+                        deletePartialFile(target);
+                    }
+                }
+            }
+
+            @Override
+            public void onSuccess() {
+                if (failure != null) {
+                    LOG.warn("Export prompt failed", failure);
+                    Messages.showErrorDialog(project, "导出失败：" + failure.getMessage(), "导出 Prompt");
+                    return;
+                }
+                Messages.showInfoMessage(project, String.format("已导出到：%s", target), "导出成功");
+            }
+        });
+    }
+
+    private static void deletePartialFile(Path target) {
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            LOG.warn("Could not delete partially exported file: " + target, e);
+        }
+    }
+
     @Override
     public void dispose() {
+        generationScheduler.dispose();
+        LOG.info(String.format("Selection changes: %d submitted, %d merged, %d generated",
+            generationScheduler.getSubmittedCount(), generationScheduler.getMergedCount(),
+            generationScheduler.getExecutedCount()));
+        ProgressIndicator running = currentGeneration;
+        if (running != null) {
+            running.cancel();
+        }
         if (editor != null) {
             EditorFactory.getInstance().releaseEditor(editor);
         }
+        promptGenerator.dispose();
+        if (fileTreePanel != null) {
+            fileTreePanel.dispose();
+        }
         super.dispose();
     }
 } 
\ No newline at end of file
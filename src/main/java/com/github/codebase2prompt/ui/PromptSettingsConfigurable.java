@@ -0,0 +1,170 @@
+package com.github.codebase2prompt.ui;
+
+import com.github.codebase2prompt.storage.PromptSettings;
+import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.components.JBCheckBox;
+import com.intellij.ui.components.JBLabel;
+import com.intellij.util.ui.JBUI;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Settings > Tools > Codebase2Prompt 项目级设置页
+ */
+public class PromptSettingsConfigurable implements Configurable {
+    private static final int KB = 1024;
+    private final Project project;
+    private JPanel panel;
+    private JBIntSpinner sizeLimitSpinner;
+    private JBIntSpinner tokenBudgetSpinner;
+    private JBIntSpinner debounceSpinner;
+    private JBIntSpinner snippetContextSpinner;
+    private JBCheckBox snippetModeCheckBox;
+    private JBCheckBox compactCheckBox;
+    private JBCheckBox stripCommentsCheckBox;
+    private JBCheckBox stripLicenseCheckBox;
+    private JBCheckBox collapseImportsCheckBox;
+    private JBCheckBox foldWhitespaceCheckBox;
+
+    public PromptSettingsConfigurable(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public @Nls String getDisplayName() {
+        return "Codebase2Prompt";
+    }
+
+    @Override
+    public @Nullable JComponent createComponent() {
+        panel = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.anchor = GridBagConstraints.WEST;
+        c.insets = JBUI.insets(0, 0, 5, 5);
+
+        // 内容大小限制
+        c.gridx = 0;
+        c.gridy = 0;
+        panel.add(new JBLabel("内容大小限制 (KB)："), c);
+        sizeLimitSpinner = new JBIntSpinner((int) (PromptSettings.DEFAULT_SIZE_LIMIT / KB), 1, Integer.MAX_VALUE / KB, 512);
+        c.gridx = 1;
+        panel.add(sizeLimitSpinner, c);
+
+        // Token 预算
+        c.gridx = 0;
+        c.gridy = 1;
+        panel.add(new JBLabel("Token 预算 (0 表示不限制)："), c);
+        tokenBudgetSpinner = new JBIntSpinner(0, 0, Integer.MAX_VALUE, 1000);
+        c.gridx = 1;
+        panel.add(tokenBudgetSpinner, c);
+
+        // 选择变化合并窗口
+        c.gridx = 0;
+        c.gridy = 2;
+        panel.add(new JBLabel("选择变化合并窗口 (毫秒)："), c);
+        debounceSpinner = new JBIntSpinner(PromptSettings.DEFAULT_SELECTION_DEBOUNCE_MS, 0, 5000, 50);
+        c.gridx = 1;
+        panel.add(debounceSpinner, c);
+
+        // 匹配片段上下文
+        c.gridx = 0;
+        c.gridy = 3;
+        panel.add(new JBLabel("匹配片段上下文行数："), c);
+        snippetContextSpinner = new JBIntSpinner(PromptSettings.DEFAULT_SNIPPET_CONTEXT_LINES, 0, 1000, 1);
+        c.gridx = 1;
+        panel.add(snippetContextSpinner, c);
+
+        // 片段模式
+        c.gridx = 0;
+        c.gridy = 4;
+        c.gridwidth = 2;
+        snippetModeCheckBox = new JBCheckBox("搜索结果只输出匹配片段");
+        panel.add(snippetModeCheckBox, c);
+
+        // 紧凑目录结构
+        c.gridy = 5;
+        compactCheckBox = new JBCheckBox("紧凑目录结构");
+        panel.add(compactCheckBox, c);
+
+        // 内容精简
+        c.gridy = 6;
+        c.insets = JBUI.insets(10, 0, 5, 5);
+        panel.add(new JBLabel("内容精简："), c);
+        c.insets = JBUI.insets(0, 10, 5, 5);
+        stripLicenseCheckBox = new JBCheckBox("删除文件开头的许可证注释");
+        c.gridy = 7;
+        panel.add(stripLicenseCheckBox, c);
+        stripCommentsCheckBox = new JBCheckBox("删除所有注释 (含 Javadoc)");
+        c.gridy = 8;
+        panel.add(stripCommentsCheckBox, c);
+        collapseImportsCheckBox = new JBCheckBox("合并同包的 import (仅 Java / Kotlin, 输出不可编译)");
+        c.gridy = 9;
+        panel.add(collapseImportsCheckBox, c);
+        foldWhitespaceCheckBox = new JBCheckBox("删除行尾空白并折叠连续空行");
+        c.gridy = 10;
+        panel.add(foldWhitespaceCheckBox, c);
+
+        // 占位, 使内容靠上
+        c.gridy = 11;
+        c.weighty = 1.0;
+        panel.add(new JPanel(), c);
+
+        reset();
+        return panel;
+    }
+
+    @Override
+    public boolean isModified() {
+        PromptSettings settings = PromptSettings.getInstance(project);
+        return sizeLimitSpinner.getNumber() != (int) (settings.getSizeLimit() / KB)
+            || tokenBudgetSpinner.getNumber() != settings.getTokenBudget()
+            || debounceSpinner.getNumber() != settings.getSelectionDebounceMs()
+            || snippetContextSpinner.getNumber() != settings.getSnippetContextLines()
+            || snippetModeCheckBox.isSelected() != settings.isSnippetMode()
+            || compactCheckBox.isSelected() != settings.isCompactFolderStructure()
+            || stripCommentsCheckBox.isSelected() != settings.isStripComments()
+            || stripLicenseCheckBox.isSelected() != settings.isStripLicenseHeaders()
+            || collapseImportsCheckBox.isSelected() != settings.isCollapseImports()
+            || foldWhitespaceCheckBox.isSelected() != settings.isFoldWhitespace();
+    }
+
+    @Override
+    public void apply() {
+        PromptSettings settings = PromptSettings.getInstance(project);
+        settings.setSizeLimit((long) sizeLimitSpinner.getNumber() * KB);
+        settings.setTokenBudget(tokenBudgetSpinner.getNumber());
+        settings.setSelectionDebounceMs(debounceSpinner.getNumber());
+        settings.setSnippetContextLines(snippetContextSpinner.getNumber());
+        settings.setSnippetMode(snippetModeCheckBox.isSelected());
+        settings.setCompactFolderStructure(compactCheckBox.isSelected());
+        settings.setStripComments(stripCommentsCheckBox.isSelected());
+        settings.setStripLicenseHeaders(stripLicenseCheckBox.isSelected());
+        settings.setCollapseImports(collapseImportsCheckBox.isSelected());
+        settings.setFoldWhitespace(foldWhitespaceCheckBox.isSelected());
+    }
+
+    @Override
+    public void reset() {
+        PromptSettings settings = PromptSettings.getInstance(project);
+        sizeLimitSpinner.setNumber((int) Math.min(Integer.MAX_VALUE / KB, settings.getSizeLimit() / KB));
+        tokenBudgetSpinner.setNumber(settings.getTokenBudget());
+        debounceSpinner.setNumber(Math.min(5000, settings.getSelectionDebounceMs()));
+        snippetContextSpinner.setNumber(Math.min(1000, settings.getSnippetContextLines()));
+        snippetModeCheckBox.setSelected(settings.isSnippetMode());
+        compactCheckBox.setSelected(settings.isCompactFolderStructure());
+        stripCommentsCheckBox.setSelected(settings.isStripComments());
+        stripLicenseCheckBox.setSelected(settings.isStripLicenseHeaders());
+        collapseImportsCheckBox.setSelected(settings.isCollapseImports());
+        foldWhitespaceCheckBox.setSelected(settings.isFoldWhitespace());
+    }
+
+    @Override
+    public void disposeUIResources() {
+        panel = null;
+    }
+}
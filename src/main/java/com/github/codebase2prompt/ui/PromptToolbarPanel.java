@@ -1,9 +1,11 @@
 package com.github.codebase2prompt.ui;
 
 import com.github.codebase2prompt.storage.FileSelectionStorage;
+import com.github.codebase2prompt.storage.PromptSettings;
 import com.intellij.icons.AllIcons;
 import com.intellij.openapi.actionSystem.*;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.InputValidator;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.ui.components.JBPanel;
 import com.intellij.util.ui.JBUI;
@@ -23,6 +25,8 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
     private final Project project;
     private final Editor editor;
     private boolean hasSelectedFiles = false;
+    private boolean canUndoSelection = false;
+    private boolean canRedoSelection = false;
     private ActionToolbar toolbar;
 
     public PromptToolbarPanel(Project project, Editor editor) {
@@ -156,6 +160,90 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
             }
         });
 
+        // 撤销选择按钮
+        leftGroup.add(new AnAction("撤销选择", "撤销上一次选择变化", AllIcons.Actions.Undo) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                if (callback != null) {
+                    callback.onUndoSelection();
+                }
+            }
+
+            @Override
+            public void update(@NotNull AnActionEvent e) {
+                e.getPresentation().setEnabled(canUndoSelection);
+            }
+        });
+
+        // 重做选择按钮
+        leftGroup.add(new AnAction("重做选择", "恢复被撤销的选择变化", AllIcons.Actions.Redo) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                if (callback != null) {
+                    callback.onRedoSelection();
+                }
+            }
+
+            @Override
+            public void update(@NotNull AnActionEvent e) {
+                e.getPresentation().setEnabled(canRedoSelection);
+            }
+        });
+
+        // 分隔符
+        leftGroup.add(Separator.getInstance());
+
+        // Token 预算按钮
+        leftGroup.add(new AnAction("Token 预算", "设置 Prompt 的 Token 预算, 超出时自动截断或省略文件", AllIcons.General.Settings) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                showTokenBudgetDialog();
+            }
+
+            @Override
+            public void update(@NotNull AnActionEvent e) {
+                e.getPresentation().setEnabled(true);
+            }
+        });
+
+        // 紧凑目录结构开关
+        leftGroup.add(new ToggleAction("紧凑目录结构", "合并单子目录链并使用缩进代替框线, 减少目录结构的 Tokens", AllIcons.Actions.ShowAsTree) {
+            @Override
+            public boolean isSelected(@NotNull AnActionEvent e) {
+                return PromptSettings.getInstance(project).isCompactFolderStructure();
+            }
+
+            @Override
+            public void setSelected(@NotNull AnActionEvent e, boolean state) {
+                PromptSettings.getInstance(project).setCompactFolderStructure(state);
+                if (callback != null) {
+                    callback.onFolderStructureStyleChanged(state);
+                }
+            }
+        });
+
+        // 匹配片段开关, 只有来自搜索结果、带有匹配位置时可用
+        leftGroup.add(new ToggleAction("只输出匹配片段", "来自搜索结果的文件只输出匹配行及前后若干行, 行数在设置中配置", AllIcons.Actions.Find) {
+            @Override
+            public boolean isSelected(@NotNull AnActionEvent e) {
+                return PromptSettings.getInstance(project).isSnippetMode();
+            }
+
+            @Override
+            public void setSelected(@NotNull AnActionEvent e, boolean state) {
+                PromptSettings.getInstance(project).setSnippetMode(state);
+                if (callback != null) {
+                    callback.onSnippetModeChanged(state);
+                }
+            }
+
+            @Override
+            public void update(@NotNull AnActionEvent e) {
+                super.update(e);
+                e.getPresentation().setEnabled(callback != null && callback.hasMatchRanges());
+            }
+        });
+
         // 添加左侧按钮组
         actionGroup.add(leftGroup);
         
@@ -197,6 +285,21 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
             }
         };
         rightGroup.add(copyAction);
+
+        // 导出到文件按钮, 流式写出, 适合体积很大的 Prompt
+        rightGroup.add(new AnAction("导出到文件", "将 Prompt 流式导出到文件", AllIcons.ToolbarDecorator.Export) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                if (callback != null) {
+                    callback.onExportToFile();
+                }
+            }
+
+            @Override
+            public void update(@NotNull AnActionEvent e) {
+                e.getPresentation().setEnabled(hasSelectedFiles);
+            }
+        });
         actionGroup.add(rightGroup);
 
         // 创建工具栏并保存引用
@@ -219,8 +322,13 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
             "   - 折叠：折叠所有目录\n" +
             "   - 全选：选择所有文件\n" +
             "   - 全不选：取消选择所有文件\n" +
+            "   - 撤销/重做选择：在选择变化之间切换\n" +
             "   - @复制：文件列表复制到剪贴板\n" +
             "   - 复制：将生成的 Prompt 复制到剪贴板\n" +
+            "   - 导出到文件：将 Prompt 直接写入文件\n" +
+            "   - Token 预算：超出预算时按顺序截断或省略文件\n" +
+            "   - 紧凑目录结构：用更少的 Tokens 输出目录结构\n" +
+            "   - 只输出匹配片段：搜索结果只输出匹配行及上下文\n" +
             "3. 右侧预览区域显示生成的 Prompt 内容\n" +
             "4. 底部显示已选择的文件数量和预计 Tokens\n" +
             "5. 选择列表管理\n\n" +
@@ -234,6 +342,38 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
         );
     }
 
+    private void showTokenBudgetDialog() {
+        PromptSettings settings = PromptSettings.getInstance(project);
+        String input = Messages.showInputDialog(
+            project,
+            "请输入 Token 预算 (0 表示不限制)：",
+            "Token 预算",
+            null,
+            String.valueOf(settings.getTokenBudget()),
+            new InputValidator() {
+                @Override
+                public boolean checkInput(String inputString) {
+                    try {
+                        return Integer.parseInt(inputString.trim()) >= 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+
+                @Override
+                public boolean canClose(String inputString) {
+                    return checkInput(inputString);
+                }
+            });
+        if (input == null) {
+            return;
+        }
+        settings.setTokenBudget(Integer.parseInt(input.trim()));
+        if (callback != null) {
+            callback.onTokenBudgetChanged(settings.getTokenBudget());
+        }
+    }
+
     private void copyToClipboard() {
         String content = editor.getDocument().getText();
         if (content != null && !content.trim().isEmpty()) {
@@ -344,7 +484,14 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
         void onCollapseAll();
         void onSelectAll();
         void onUnselectAll();
+        void onUndoSelection(); // 新增：撤销选择
+        void onRedoSelection(); // 新增：重做选择
         void onSaveSelection();
+        void onExportToFile(); // 新增：流式导出到文件
+        void onTokenBudgetChanged(int tokenBudget); // 新增：Token 预算变化
+        void onFolderStructureStyleChanged(boolean compact); // 新增：目录结构格式变化
+        void onSnippetModeChanged(boolean snippetMode); // 新增：匹配片段模式变化
+        boolean hasMatchRanges(); // 新增：文件是否带有搜索匹配位置
         void onLoadSelection(FileSelectionStorage.FileSelection selection);
         void onDeleteSelection(FileSelectionStorage.FileSelection selection); // 新增：删除选择的回调
         List<String> getSelectedFileNames(); // 新增：获取选中文件的文件名列表
@@ -366,6 +513,14 @@ public class PromptToolbarPanel extends JBPanel<PromptToolbarPanel> {
         }
     }
 
+    public void updateSelectionHistoryState(boolean canUndo, boolean canRedo) {
+        this.canUndoSelection = canUndo;
+        this.canRedoSelection = canRedo;
+        if (toolbar != null) {
+            updateToolbarActionsReflectively(toolbar);
+        }
+    }
+
     private void updateToolbarActionsReflectively(ActionToolbar toolbar) {
         try {
             Method updateMethod = ActionToolbar.class.getMethod("updateActionsImmediately");
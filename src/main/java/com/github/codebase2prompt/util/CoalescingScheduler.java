@@ -0,0 +1,107 @@
+package com.github.codebase2prompt.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+
+/**
+ * 合并连续请求的调度器, 只在 EDT 上使用
+ * <p>
+ * 请求在延迟窗口内不断到达时只保留最新一个, 窗口结束后才执行; 任务执行期间到达的请求
+ * 等任务调用完成回调后再执行, 同一时刻最多只有一个任务在运行
+ */
+public class CoalescingScheduler {
+    /**
+     * 可异步完成的任务, 结束时 (包括失败和取消) 必须调用一次 done, 可在任意线程调用
+     */
+    public interface Task {
+        void run(@NotNull Runnable done);
+    }
+
+    private final Timer timer;
+    // 等待执行的最新请求
+    private Task pending;
+    private boolean running;
+    private boolean disposed;
+    // 区分不同次执行的完成回调, 重复或过期的回调会被忽略
+    private int runId;
+    private int submittedCount;
+    private int mergedCount;
+    private int executedCount;
+
+    /**
+     * @param delayMs 合并窗口 (毫秒), 0 表示不等待, 但仍不会与运行中的任务并行
+     */
+    public CoalescingScheduler(int delayMs) {
+        timer = new Timer(Math.max(0, delayMs), e -> runPending());
+        timer.setRepeats(false);
+    }
+
+    public void setDelay(int delayMs) {
+        timer.setInitialDelay(Math.max(0, delayMs));
+    }
+
+    /**
+     * 提交请求, 替换尚未执行的旧请求并重新开始计时
+     */
+    public void submit(@NotNull Task task) {
+        if (disposed) {
+            return;
+        }
+        submittedCount++;
+        if (pending != null) {
+            mergedCount++;
+        }
+        pending = task;
+        timer.restart();
+    }
+
+    private void runPending() {
+        if (disposed || running || pending == null) {
+            return;
+        }
+        Task task = pending;
+        pending = null;
+        running = true;
+        executedCount++;
+        int id = ++runId;
+        try {
+            task.run(() -> finish(id));
+        } catch (RuntimeException e) {
+            finish(id);
+            throw e;
+        }
+    }
+
+    private void finish(int id) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> finish(id));
+            return;
+        }
+        if (id != runId || !running) {
+            return;
+        }
+        running = false;
+        // 等待期间的请求已过合并窗口时立即执行, 否则交给计时器
+        if (pending != null && !timer.isRunning()) {
+            runPending();
+        }
+    }
+
+    public boolean isRunning() {return running;}
+
+    public int getSubmittedCount() {return submittedCount;}
+
+    public int getMergedCount() {return mergedCount;}
+
+    public int getExecutedCount() {return executedCount;}
+
+    /**
+     * 停止计时并丢弃未执行的请求, 运行中的任务由调用方自行取消
+     */
+    public void dispose() {
+        disposed = true;
+        pending = null;
+        timer.stop();
+    }
+}
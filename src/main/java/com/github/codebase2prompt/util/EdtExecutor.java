@@ -0,0 +1,28 @@
+package com.github.codebase2prompt.util;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+
+/**
+ * 把任务投递到 EDT 执行, 在任何模态对话框打开时都会执行 (ModalityState.any)
+ * <p>
+ * IDE 中经由 Application 投递, 与其他 invokeLater 保持顺序; 没有 Application 时 (JMH 基准测试等无头环境)
+ * 退回 SwingUtilities.invokeLater, 调用方因此可以在基准测试中用 invokeAndWait 排空队列
+ */
+public final class EdtExecutor {
+    private EdtExecutor() {
+    }
+
+    public static void invokeLater(@NotNull Runnable runnable) {
+        Application application = ApplicationManager.getApplication();
+        if (application != null) {
+            application.invokeLater(runnable, ModalityState.any());
+        } else {
+            SwingUtilities.invokeLater(runnable);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.codebase2prompt.util;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.util.Ref;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * 在后台读操作中执行耗时任务, 写操作优先: 有写操作等待时立即让出读锁, 写操作结束后重新执行
+ * <p>
+ * 长时间持有读锁会让 EDT 上的写操作 (VFS 刷新、提交 Document) 一直等待, 界面随之卡住;
+ * 任务应把已完成的部分放入缓存, 重新执行时才不会重复读取
+ */
+public final class YieldingReadAction {
+    private YieldingReadAction() {
+    }
+
+    /**
+     * 可被重新执行的读任务, 应通过传入的指示器检查取消状态
+     */
+    public interface Computation<T> {
+        T compute(@NotNull ProgressIndicator indicator) throws IOException;
+    }
+
+    /**
+     * 在当前 (非 EDT) 线程执行, 直到完成或 parent 被取消
+     *
+     * @param parent 调用方的进度指示器, 取消时抛出 ProcessCanceledException
+     * @throws IOException 任务本身抛出的 IOException
+     */
+    public static <T> T compute(@NotNull Computation<T> computation, @NotNull ProgressIndicator parent) throws IOException {
+        while (true) {
+            parent.checkCanceled();
+            AttemptIndicator attempt = new AttemptIndicator(parent);
+            Ref<T> result = new Ref<>();
+            Ref<IOException> error = new Ref<>();
+            boolean completed = ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(() -> {
+                try {
+                    result.set(computation.compute(attempt));
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }, attempt);
+            if (!error.isNull()) {
+                throw error.get();
+            }
+            if (completed) {
+                return result.get();
+            }
+            // 被写操作打断 (或 parent 已取消, 下一轮检查时抛出), 等写操作结束后重新执行
+            ProgressIndicatorUtils.yieldToPendingWriteActions();
+        }
+    }
+
+    // 单次执行的指示器: 写操作到来时只取消这一次; 外层取消时随之取消, 进度转发到外层
+    private static class AttemptIndicator extends ProgressIndicatorBase {
+        private final ProgressIndicator parent;
+
+        AttemptIndicator(ProgressIndicator parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return super.isCanceled() || parent.isCanceled();
+        }
+
+        @Override
+        public void setText(String text) {
+            super.setText(text);
+            parent.setText(text);
+        }
+
+        @Override
+        public void setText2(String text) {
+            super.setText2(text);
+            parent.setText2(text);
+        }
+
+        @Override
+        public void setFraction(double fraction) {
+            super.setFraction(fraction);
+            parent.setFraction(fraction);
+        }
+
+        @Override
+        public void setIndeterminate(boolean indeterminate) {
+            super.setIndeterminate(indeterminate);
+            parent.setIndeterminate(indeterminate);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.codebase2prompt.core;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TokenCounter 与 tiktoken cl100k_base 的一致性
+ * <p>
+ * 固定计数取自 tiktoken 对同一文本的编码结果; 超过 64 字节的片段走堆合并路径, 与按定义逐步合并的参考实现比较.
+ * 未打包词表时 (离线构建未下载 cl100k_base.tiktoken) 跳过
+ */
+public class TokenCounterTest {
+    private static BpeTokenizer tokenizer;
+
+    @BeforeClass
+    public static void loadVocabulary() throws IOException {
+        Assume.assumeTrue("BPE vocabulary not bundled", TokenCounter.isExact());
+        try (InputStream in = TokenCounter.class.getResourceAsStream("/tokenizer/cl100k_base.tiktoken")) {
+            assertNotNull(in);
+            tokenizer = BpeTokenizer.load(in);
+        }
+    }
+
+    @Test
+    public void matchesTiktokenCounts() {
+        assertEquals(2, TokenCounter.estimateTokens("hello world"));
+        assertEquals(6, TokenCounter.estimateTokens("tiktoken is great!"));
+        assertEquals(6, TokenCounter.estimateTokens("antidisestablishmentarianism"));
+        // 数字与前面的空格分开: "2", " +", " ", "2", " =", " ", "4"
+        assertEquals(7, TokenCounter.estimateTokens("2 + 2 = 4"));
+    }
+
+    @Test
+    public void matchesTiktokenCountsForCjk() {
+        assertEquals(9, TokenCounter.estimateTokens("お誕生日おめでとう"));
+    }
+
+    @Test
+    public void longLetterPieceMatchesReference() {
+        assertMatchesReference(repeat("supercalifragilisticexpialidocious", 3));
+    }
+
+    @Test
+    public void longSymbolRunMatchesReference() {
+        assertMatchesReference(repeat("=-", 40));
+        assertMatchesReference(repeat("*", 100));
+    }
+
+    @Test
+    public void longCjkPieceMatchesReference() {
+        assertMatchesReference(repeat("中文分词测试", 5));
+    }
+
+    // 文本必须是单个预分词片段, 整段的计数等于该片段的 BPE 结果
+    private static void assertMatchesReference(String piece) {
+        byte[] bytes = piece.getBytes(StandardCharsets.UTF_8);
+        assertTrue(bytes.length > BpeTokenizer.LINEAR_MERGE_MAX_BYTES);
+        assertEquals(piece, referenceCount(bytes), TokenCounter.estimateTokens(piece));
+    }
+
+    /**
+     * 按 BPE 定义逐步合并: 每次合并 rank 最小的相邻一对, rank 相同时取最左边, 直到没有可合并的对
+     */
+    private static int referenceCount(byte[] bytes) {
+        List<Integer> starts = new ArrayList<>(bytes.length + 1);
+        for (int i = 0; i <= bytes.length; i++) {
+            starts.add(i);
+        }
+        while (starts.size() > 2) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 2 < starts.size(); i++) {
+                int rank = tokenizer.rank(bytes, starts.get(i), starts.get(i + 2) - starts.get(i));
+                if (rank >= 0 && rank < bestRank) {
+                    best = i;
+                    bestRank = rank;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            starts.remove(best + 1);
+        }
+        return starts.size() - 1;
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}